@@ -0,0 +1,396 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Running extraction of asset directory started by FilesManager.startAssetsExtraction.
+ *
+ * Assets are extracted by bounded number of workers through large pooled buffers, critical
+ * assets are taken first and they have their own completion. Assets which were already
+ * extracted and did not change are skipped, see copyDirectoryWithContentFromAssets.
+ */
+public class AssetExtraction {
+
+    private static final long PROGRESS_INTERVAL_NANOS = 100 * 1000 * 1000;
+
+    private final AssetSync sync;
+    private final String assetDir;
+    private final Collection<String> criticalAssets;
+    private final FilesManager.AssetProgressListener listener;
+    private final int parallelism;
+    private final Runnable onWritten;
+
+    private final Completion completion = new Completion();
+    private final Completion criticalCompletion = new Completion();
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private final AtomicInteger nextTask = new AtomicInteger();
+    private final AtomicInteger remainingCritical = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile boolean failed;
+    private long start;
+
+    /**
+     * Extraction constructor, extraction runs when run is called.
+     *
+     * @param sync           sync of output directory
+     * @param assetDir       path of directory in assets
+     * @param criticalAssets optional paths of assets or asset directories extracted first
+     * @param listener       optional progress listener
+     * @param parallelism    number of extracting threads
+     * @param onWritten      called when extracted files were changed
+     */
+    AssetExtraction(AssetSync sync, String assetDir, Collection<String> criticalAssets,
+                    FilesManager.AssetProgressListener listener, int parallelism, Runnable onWritten) {
+        this.sync = sync;
+        this.assetDir = assetDir;
+        this.criticalAssets = criticalAssets;
+        this.listener = listener;
+        this.parallelism = Math.max(1, parallelism);
+        this.onWritten = onWritten;
+    }
+
+    /**
+     * Returns completion of the whole extraction.
+     *
+     * @return future with true if all assets were extracted, false if extraction failed or was cancelled
+     */
+    public Future<Boolean> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Returns completion of critical assets, it is done before the rest of assets is extracted.
+     *
+     * @return future with true if all critical assets were extracted, false otherwise
+     */
+    public Future<Boolean> getCriticalCompletion() {
+        return criticalCompletion;
+    }
+
+    /**
+     * Returns number of bytes to be processed. Sizes of compressed assets which were not
+     * extracted yet are not known before their extraction, so total grows while they are extracted.
+     *
+     * @return total bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Returns number of already extracted or verified bytes.
+     *
+     * @return processed bytes
+     */
+    public long getProcessedBytes() {
+        return processedBytes.get();
+    }
+
+    /**
+     * Cancels extraction, already extracted assets are kept and they are skipped next time.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    //
+    // EXTRACTION METHODS
+    //
+
+    /**
+     * Starts extraction on background thread.
+     */
+    void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AssetExtraction.this.run();
+            }
+        }, "FilesManager-assets");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Extracts assets on calling thread together with other workers.
+     *
+     * @return true if all assets were extracted
+     */
+    boolean run() {
+        boolean result = false;
+
+        // extractions of the same output directory would write the same files
+        synchronized (sync.extractionLock) {
+            try {
+                result = extract();
+            } catch (RuntimeException e) {
+                Timber.e(e);
+            } finally {
+                criticalCompletion.complete(result);
+                completion.complete(result);
+            }
+        }
+        return result;
+    }
+
+    private boolean extract() {
+        start = System.nanoTime();
+        lastReport.set(start);
+
+        List<AssetSync.Task> tasks = orderCriticalFirst(sync.plan(assetDir));
+
+        long total = 0;
+        for (AssetSync.Task task : tasks) {
+            total += Math.max(0, task.size);
+        }
+        totalBytes.set(total);
+
+        if (remainingCritical.get() == 0) {
+            criticalCompletion.complete(true);
+        }
+
+        int workers = Math.min(parallelism, tasks.size());
+        if (workers > 1) {
+            runWorkers(tasks, workers);
+        } else {
+            new Worker(tasks).run();
+        }
+
+        if (!tasks.isEmpty() && onWritten != null) {
+            onWritten.run();
+        }
+
+        boolean complete = !cancelled && !failed;
+        try {
+            sync.commit(assetDir, complete);
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+
+        report(true);
+        return complete;
+    }
+
+    private void runWorkers(List<AssetSync.Task> tasks, int workers) {
+        ExecutorService executor = Executors.newFixedThreadPool(workers - 1, new WorkerThreadFactory());
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            // calling thread works too
+            for (int i = 1; i < workers; i++) {
+                futures.add(executor.submit(new Worker(tasks)));
+            }
+            new Worker(tasks).run();
+
+            // workers are awaited so no file is written after completion
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Timber.e(e.getCause());
+                    failed = true;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Moves critical assets to the beginning, workers take tasks in order.
+     */
+    private List<AssetSync.Task> orderCriticalFirst(List<AssetSync.Task> tasks) {
+        if (criticalAssets == null || criticalAssets.isEmpty()) {
+            return tasks;
+        }
+
+        List<AssetSync.Task> ordered = new ArrayList<>(tasks.size());
+        List<AssetSync.Task> rest = new ArrayList<>();
+
+        for (AssetSync.Task task : tasks) {
+            if (isCritical(task.path)) {
+                ordered.add(task);
+            } else {
+                rest.add(task);
+            }
+        }
+
+        remainingCritical.set(ordered.size());
+        ordered.addAll(rest);
+        return ordered;
+    }
+
+    private boolean isCritical(String path) {
+        if (criticalAssets == null) {
+            return false;
+        }
+
+        for (String critical : criticalAssets) {
+            if (path.equals(critical) || path.startsWith(critical.endsWith("/") ? critical : critical + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private AssetSync.Task nextTask(List<AssetSync.Task> tasks) {
+        int index = nextTask.getAndIncrement();
+        return (index < tasks.size()) ? tasks.get(index) : null;
+    }
+
+    /**
+     * Reports progress to listener, at most once per interval unless forced.
+     *
+     * @param force
+     */
+    private void report(boolean force) {
+        if (listener == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long last = lastReport.get();
+
+        if (!force && (now - last < PROGRESS_INTERVAL_NANOS || !lastReport.compareAndSet(last, now))) {
+            return;
+        }
+
+        synchronized (this) {
+            long processed = processedBytes.get();
+            long elapsed = Math.max(1, now - start);
+            long bytesPerSecond = (long) (processed * 1e9 / elapsed);
+
+            if (!listener.onProgress(processed, Math.max(processed, totalBytes.get()), bytesPerSecond)) {
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Extracts tasks until all of them are taken or extraction is cancelled, failed assets do
+     * not stop the others.
+     */
+    private class Worker implements Runnable, AssetSync.Progress {
+
+        private final List<AssetSync.Task> tasks;
+
+        Worker(List<AssetSync.Task> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public void run() {
+            AssetSync.Task task;
+
+            while (!cancelled && (task = nextTask(tasks)) != null) {
+                boolean critical = remainingCritical.get() > 0 && isCritical(task.path);
+                boolean done = false;
+
+                try {
+                    long processed = sync.execute(task, this);
+
+                    if (processed >= 0) {
+                        // sizes of compressed assets are known only now
+                        totalBytes.addAndGet(processed - Math.max(0, task.size));
+                        done = true;
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "Asset '%s' cannot be extracted", task.path);
+                    failed = true;
+                }
+
+                if (critical) {
+                    if (!done) {
+                        criticalCompletion.complete(false);
+                    } else if (remainingCritical.decrementAndGet() == 0) {
+                        criticalCompletion.complete(true);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean add(long bytes) {
+            processedBytes.addAndGet(bytes);
+            report(false);
+            return !cancelled;
+        }
+    }
+
+    /**
+     * Future completed by extraction, it cannot be cancelled by itself, see cancel.
+     */
+    private static class Completion implements Future<Boolean> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean result;
+
+        synchronized void complete(boolean result) {
+            if (done.getCount() > 0) {
+                this.result = result;
+                done.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException {
+            done.await();
+            return result;
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FilesManager-assets-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
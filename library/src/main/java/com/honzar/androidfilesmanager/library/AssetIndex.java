@@ -0,0 +1,152 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.content.res.AssetManager;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import timber.log.Timber;
+
+/**
+ * Index of assets generated at build time by asset-index.gradle.
+ *
+ * Index contains path, size and SHA-256 hash of every asset file, so assets can be listed and
+ * their extraction planned by one small read instead of AssetManager.list calls, which scan
+ * directory of the APK again for every directory. Directories are derived from file paths,
+ * empty directories are not indexed.
+ */
+class AssetIndex {
+
+    static final String INDEX_ASSET_NAME = "afm_asset_index.bin";
+
+    private static final int INDEX_MAGIC = 0x41464d49;
+    private static final int INDEX_VERSION = 1;
+
+    private final TreeMap<String, Entry> files = new TreeMap<>();
+
+    private AssetIndex() {
+    }
+
+    /**
+     * Reads index from assets.
+     *
+     * @param assets
+     * @return index, null if assets do not contain valid index
+     */
+    static AssetIndex load(AssetManager assets) {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(assets.open(INDEX_ASSET_NAME)));
+
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown asset index format");
+            }
+
+            AssetIndex index = new AssetIndex();
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                index.files.put(path, new Entry(in.readLong(), in.readUTF()));
+            }
+            return index;
+
+        } catch (FileNotFoundException e) {
+            Timber.d("Assets are not indexed, they are listed by AssetManager");
+        } catch (IOException e) {
+            Timber.e(e, "Asset index cannot be read");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * Checks if path is directory containing indexed files.
+     *
+     * @param path asset path, empty for root
+     * @return true/false
+     */
+    boolean isDirectory(String path) {
+        return !descendants(path).isEmpty();
+    }
+
+    /**
+     * Returns names of files and directories in asset directory.
+     *
+     * @param path asset path, empty for root
+     * @return names in order of their paths, empty array if directory is not indexed
+     */
+    String[] list(String path) {
+        String prefix = path.isEmpty() ? "" : path + "/";
+        Set<String> names = new LinkedHashSet<>();
+
+        for (String file : descendants(path).keySet()) {
+            int end = file.indexOf('/', prefix.length());
+            names.add(file.substring(prefix.length(), (end < 0) ? file.length() : end));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Adds paths of all files in asset directory and its subdirectories.
+     *
+     * @param path  asset path, empty for root
+     * @param paths
+     */
+    void listFiles(String path, Set<String> paths) {
+        paths.addAll(descendants(path).keySet());
+    }
+
+    /**
+     * Returns size of asset file.
+     *
+     * @param path
+     * @return size in bytes, -1 if file is not indexed
+     */
+    long getSize(String path) {
+        Entry entry = files.get(path);
+        return (entry != null) ? entry.size : -1;
+    }
+
+    /**
+     * Returns content hash of asset file.
+     *
+     * @param path
+     * @return hex encoded SHA-256, null if file is not indexed
+     */
+    String getHash(String path) {
+        Entry entry = files.get(path);
+        return (entry != null) ? entry.hash : null;
+    }
+
+    /**
+     * Returns files inside of directory, whole index for root.
+     */
+    private SortedMap<String, Entry> descendants(String path) {
+        if (path.isEmpty()) {
+            return files;
+        }
+        // '0' follows '/', so the range contains exactly the paths starting with "path/"
+        return files.subMap(path + "/", path + "0");
+    }
+
+    private static class Entry {
+        final long size;
+        final String hash;
+
+        Entry(long size, String hash) {
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import timber.log.Timber;
+
+/**
+ * Recursive extraction of asset directories which skips unchanged assets.
+ *
+ * Manifest in root of output directory records version of installed package, synced asset
+ * directories and size, hash and modification time of every extracted file. While package is
+ * not updated, sync of already synced directory only compares extracted files with manifest,
+ * assets are neither listed nor read. After update assets are listed and hashed again and
+ * extracted files with unchanged content are kept. When assets are indexed at build time,
+ * listing and hashes are taken from the index and unchanged assets are not read at all.
+ *
+ * Sync is planned first and its tasks may be executed concurrently, manifest is saved on commit
+ * if it was changed.
+ * Whole runs over the same output directory are serialized by extraction lock.
+ */
+class AssetSync {
+
+    static final String MANIFEST_FILE_NAME = ".afm_assets";
+
+    private static final int MANIFEST_MAGIC = 0x41464d41;
+    private static final int MANIFEST_VERSION = 1;
+
+    private final AssetManager assets;
+    private final AssetIndex index;
+    private final File outputRoot;
+    private final File manifestFile;
+    private final AtomicFileWriter manifestWriter = new AtomicFileWriter();
+    private final int versionCode;
+    private final long updateTime;
+
+    final Object extractionLock = new Object();
+
+    private final Set<String> syncedDirs = new TreeSet<>();
+    private final TreeMap<String, Record> records = new TreeMap<>();
+    private boolean loaded;
+    // manifest differs from its file
+    private boolean dirty;
+
+    /**
+     * Sync constructor, manifest is loaded on first plan.
+     *
+     * @param context
+     * @param outputRoot directory to which assets are extracted with their paths
+     * @param index      optional index of assets
+     */
+    AssetSync(Context context, File outputRoot, AssetIndex index) {
+        this.assets = context.getAssets();
+        this.index = index;
+        this.outputRoot = outputRoot.getAbsoluteFile();
+        this.manifestFile = new File(this.outputRoot, MANIFEST_FILE_NAME);
+
+        int code = -1;
+        long time = -1;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            code = info.versionCode;
+            time = info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // unknown version, all assets are verified by their hashes
+            Timber.e(e);
+        }
+        this.versionCode = code;
+        this.updateTime = time;
+    }
+
+    File getOutputRoot() {
+        return outputRoot;
+    }
+
+    /**
+     * Plans extraction of asset directory with all its subdirectories.
+     *
+     * @param assetDir path of directory in assets
+     * @return tasks of assets which are missing, changed or have to be verified
+     */
+    synchronized List<Task> plan(String assetDir) {
+        load();
+
+        String prefix = assetDir + "/";
+        List<Task> tasks = new ArrayList<>();
+
+        // listing is known, only extracted files are checked
+        if (syncedDirs.contains(assetDir)) {
+            for (Map.Entry<String, Record> entry : records.subMap(prefix, assetDir + "0").entrySet()) {
+                File target = new File(outputRoot, entry.getKey());
+
+                if (!entry.getValue().matches(target)) {
+                    tasks.add(new Task(entry.getKey(), target, entry.getValue().size, null));
+                }
+            }
+            return tasks;
+        }
+
+        Set<String> paths = new HashSet<>();
+        if (index != null && index.isDirectory(assetDir)) {
+            index.listFiles(assetDir, paths);
+        } else {
+            listRecursively(assetDir, paths);
+        }
+
+        for (String path : paths) {
+            File target = new File(outputRoot, path);
+            Record record = records.get(path);
+            String indexedHash = (index != null) ? index.getHash(path) : null;
+
+            if (record == null || !record.matches(target)) {
+                tasks.add(new Task(path, target, getAssetSize(path), null));
+            } else if (record.updateTime == updateTime && updateTime != -1) {
+                continue;
+            } else if (indexedHash == null) {
+                tasks.add(new Task(path, target, record.size, record.hash));
+            } else if (indexedHash.equals(record.hash)) {
+                // content is known to be unchanged, asset is not read
+                records.put(path, new Record(record.size, record.hash, record.lastModified, updateTime));
+                dirty = true;
+            } else {
+                tasks.add(new Task(path, target, getAssetSize(path), null));
+            }
+        }
+
+        // assets removed by update, their extracted files are kept
+        for (Iterator<String> it = records.subMap(prefix, assetDir + "0").keySet().iterator(); it.hasNext(); ) {
+            if (!paths.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Extracts asset of task, asset which has to be verified is extracted only if its content
+     * differs from the extracted file.
+     *
+     * @param task
+     * @param progress optional progress of processed (hashed or extracted) bytes
+     * @return number of processed bytes, -1 if progress cancelled the task
+     * @throws IOException if asset cannot be extracted
+     */
+    long execute(Task task, Progress progress) throws IOException {
+        long processed = 0;
+
+        if (task.expectedHash != null) {
+            MessageDigest digest = StorageIndex.newDigest();
+            InputStream in = assets.open(task.path);
+
+            try {
+                processed = copy(in, null, digest, progress);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+
+            if (processed < 0) {
+                return -1;
+            }
+
+            if (StorageIndex.toHex(digest.digest()).equals(task.expectedHash)) {
+                record(task.path, new Record(task.target.length(), task.expectedHash, task.target.lastModified(), updateTime));
+                return processed;
+            }
+        }
+
+        synchronized (this) {
+            if (records.remove(task.path) != null) {
+                dirty = true;
+            }
+        }
+
+        File parent = task.target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Directory '" + parent + "' cannot be created");
+        }
+
+        InputStream in;
+        try {
+            in = assets.open(task.path);
+        } catch (FileNotFoundException e) {
+            // empty asset directory cannot be told from file by listing
+            return processed;
+        }
+
+        MessageDigest digest = StorageIndex.newDigest();
+        FileOutputStream out = null;
+        boolean done = false;
+
+        try {
+            DedupStore.unlink(task.target);
+            out = new FileOutputStream(task.target);
+
+            long size = copy(in, out, digest, progress);
+            if (size < 0) {
+                return -1;
+            }
+
+            out.close();
+            out = null;
+
+            record(task.path, new Record(size, StorageIndex.toHex(digest.digest()), task.target.lastModified(), updateTime));
+            done = true;
+            return processed + size;
+
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+
+            if (!done) {
+                task.target.delete();
+            }
+        }
+    }
+
+    /**
+     * Marks directory as synced if all its tasks succeeded and saves manifest if it was changed.
+     *
+     * @param assetDir
+     * @param complete true if all tasks of the directory were executed
+     * @throws IOException if manifest cannot be written
+     */
+    synchronized void commit(String assetDir, boolean complete) throws IOException {
+        if (complete ? syncedDirs.add(assetDir) : syncedDirs.remove(assetDir)) {
+            dirty = true;
+        }
+
+        // warm start of synced directory changes nothing
+        if (!dirty) {
+            return;
+        }
+
+        if (!outputRoot.isDirectory() && !outputRoot.mkdirs()) {
+            throw new IOException("Directory '" + outputRoot + "' cannot be created");
+        }
+
+        try {
+            writeManifest();
+            dirty = false;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    private synchronized void record(String path, Record record) {
+        records.put(path, record);
+        dirty = true;
+    }
+
+    /**
+     * Reads stream to EOF through large pooled buffer, data are hashed and optionally written.
+     *
+     * @return number of read bytes, -1 if progress cancelled the copy
+     */
+    private static long copy(InputStream in, OutputStream out, MessageDigest digest, Progress progress) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquireBytes(pool.getLargeBufferSize());
+
+        try {
+            long count = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                count += read;
+
+                if (progress != null && !progress.add(read)) {
+                    return -1;
+                }
+            }
+            return count;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns size of asset from index or of asset stored without compression, compressed
+     * assets cannot be opened as file descriptor and their size is known only after extraction.
+     *
+     * @return size of asset, -1 if not known
+     */
+    private long getAssetSize(String path) {
+        long size = (index != null) ? index.getSize(path) : -1;
+        if (size >= 0) {
+            return size;
+        }
+
+        try {
+            AssetFileDescriptor descriptor = assets.openFd(path);
+            try {
+                return descriptor.getLength();
+            } finally {
+                descriptor.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds paths of files in asset directory and its subdirectories, directory is recognized
+     * by non empty listing.
+     *
+     * @return true if path is directory with content
+     */
+    private boolean listRecursively(String assetDir, Set<String> paths) {
+        String[] names;
+        try {
+            names = assets.list(assetDir);
+        } catch (IOException e) {
+            Timber.e(e);
+            return false;
+        }
+
+        if (names == null || names.length == 0) {
+            return false;
+        }
+
+        for (String name : names) {
+            String path = assetDir + "/" + name;
+
+            if (!listRecursively(path, paths)) {
+                paths.add(path);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads manifest, synced directories are dropped if package was updated since.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!manifestFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+
+            if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+                throw new IOException("Unknown asset manifest format");
+            }
+
+            int recordedVersionCode = in.readInt();
+            long recordedUpdateTime = in.readLong();
+            boolean sameVersion = recordedVersionCode == versionCode && recordedUpdateTime == updateTime && updateTime != -1;
+            // version of package is recorded again
+            dirty = !sameVersion;
+
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                String dir = in.readUTF();
+
+                if (sameVersion) {
+                    syncedDirs.add(dir);
+                }
+            }
+
+            int recordCount = in.readInt();
+            for (int i = 0; i < recordCount; i++) {
+                String path = in.readUTF();
+                records.put(path, Record.read(in));
+            }
+
+        } catch (IOException e) {
+            // everything is verified again
+            Timber.w(e, "Asset manifest '%s' cannot be read", manifestFile);
+            syncedDirs.clear();
+            records.clear();
+            dirty = true;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeManifest() throws Exception {
+        manifestWriter.write(manifestFile, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(MANIFEST_MAGIC);
+                data.writeInt(MANIFEST_VERSION);
+                data.writeInt(versionCode);
+                data.writeLong(updateTime);
+
+                data.writeInt(syncedDirs.size());
+                for (String dir : syncedDirs) {
+                    data.writeUTF(dir);
+                }
+
+                data.writeInt(records.size());
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    data.writeUTF(entry.getKey());
+                    entry.getValue().write(data);
+                }
+                data.flush();
+            }
+        });
+    }
+
+    /**
+     * Receiver of processed bytes.
+     */
+    interface Progress {
+        /**
+         * @param bytes
+         * @return false to cancel the task
+         */
+        boolean add(long bytes);
+    }
+
+    /**
+     * Extraction of one asset.
+     */
+    static class Task {
+        final String path;
+        final File target;
+        final long size;
+        final String expectedHash;
+
+        /**
+         * @param path         path of asset
+         * @param target       extracted file
+         * @param size         expected size of asset, -1 if not known
+         * @param expectedHash hash of extracted file if it has to be verified only, null to extract
+         */
+        Task(String path, File target, long size, String expectedHash) {
+            this.path = path;
+            this.target = target;
+            this.size = size;
+            this.expectedHash = expectedHash;
+        }
+    }
+
+    /**
+     * Recorded state of extracted file.
+     */
+    private static class Record {
+        final long size;
+        final String hash;
+        final long lastModified;
+        final long updateTime;
+
+        Record(long size, String hash, long lastModified, long updateTime) {
+            this.size = size;
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.updateTime = updateTime;
+        }
+
+        /**
+         * Checks if extracted file was not changed or deleted since it was recorded.
+         */
+        boolean matches(File target) {
+            return target.isFile() && target.length() == size && target.lastModified() == lastModified;
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            return new Record(in.readLong(), in.readUTF(), in.readLong(), in.readLong());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeUTF(hash);
+            out.writeLong(lastModified);
+            out.writeLong(updateTime);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * Crash-safe writer. Content is written to temporary sibling of the target file, synced to
+ * disk and renamed over the target, so the target contains either old or new content.
+ *
+ * With directory sync coalescing enabled, every writer still syncs data of its own file, but
+ * writes which are in progress when the first of them is ready are renamed together and every
+ * parent directory is synced once per batch instead of once per file. The first writer waits for
+ * the others at most for the window, it commits at once if no other write is in progress. Writer
+ * returns only after its batch is committed.
+ *
+ * Temporary files of writes interrupted by killed process are swept when their directory is
+ * written for the first time after restart, walkers and storage index skip them.
+ */
+class AtomicFileWriter {
+
+    static final String TEMP_FILE_SUFFIX = ".fmtmp";
+
+    private static final Pattern WRITER_TEMP_FILE_NAME = Pattern.compile(".+\\.\\d+" + Pattern.quote(TEMP_FILE_SUFFIX));
+    private static final long STALE_TEMP_FILE_AGE_MILLIS = 60 * 1000;
+
+    // shared by all writers of the process
+    private static final Set<String> activeTempFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Set<String> sweptDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Content to be written to file.
+     */
+    interface Content {
+        void writeTo(FileOutputStream out) throws Exception;
+    }
+
+    private final Object lock = new Object();
+    private final List<PendingWrite> pending = new ArrayList<>();
+    private volatile boolean coalesceDirectorySyncs;
+    private volatile long coalescingWindowMillis;
+    private boolean leaderWaiting;
+    private int writing;
+
+    void setDirectorySyncCoalescing(boolean enabled, long windowMillis) {
+        this.coalescingWindowMillis = Math.max(0, windowMillis);
+        this.coalesceDirectorySyncs = enabled;
+    }
+
+    /**
+     * Checks if file name belongs to temporary file of atomic write.
+     *
+     * @param name
+     * @return true for temporary files
+     */
+    static boolean isTempFile(String name) {
+        return name.endsWith(TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Writes content atomically to target file.
+     *
+     * @param target
+     * @param content
+     * @throws Exception in case of failure, target file is not changed then
+     */
+    void write(File target, Content content) throws Exception {
+        File temp = new File(target.getParentFile(),
+                target.getName() + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+        String tempPath = temp.getAbsolutePath();
+        activeTempFiles.add(tempPath);
+        sweepTempFiles(target.getParentFile());
+
+        boolean coalesce = coalesceDirectorySyncs;
+        if (coalesce) {
+            synchronized (lock) {
+                writing++;
+            }
+        }
+
+        FileOutputStream out = null;
+        boolean joined = false;
+        boolean committed = false;
+
+        try {
+            out = new FileOutputStream(temp);
+            content.writeTo(out);
+            out.flush();
+            out.getChannel().force(false);
+            out.close();
+            out = null;
+
+            if (coalesce) {
+                joined = true;
+                commitInGroup(new PendingWrite(temp, target));
+            } else {
+                rename(temp, target);
+                syncDirectory(target.getParentFile());
+            }
+            committed = true;
+
+        } finally {
+            IOUtils.closeQuietly(out);
+
+            if (coalesce && !joined) {
+                synchronized (lock) {
+                    writing--;
+                    lock.notifyAll();
+                }
+            }
+            if (!committed) {
+                temp.delete();
+            }
+            activeTempFiles.remove(tempPath);
+        }
+    }
+
+    private void commitInGroup(PendingWrite write) throws Exception {
+        List<PendingWrite> batch = null;
+
+        synchronized (lock) {
+            writing--;
+            pending.add(write);
+            lock.notifyAll();
+
+            if (!leaderWaiting) {
+                leaderWaiting = true;
+                awaitWriting();
+
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                leaderWaiting = false;
+            }
+        }
+
+        if (batch != null) {
+            commitBatch(batch);
+        }
+
+        write.done.await();
+
+        if (write.failure != null) {
+            throw write.failure;
+        }
+    }
+
+    /**
+     * Waits until other writes in progress join the batch, at most for the window.
+     */
+    private void awaitWriting() {
+        long deadline = System.currentTimeMillis() + coalescingWindowMillis;
+        long remaining = coalescingWindowMillis;
+
+        try {
+            while (writing > 0 && remaining > 0) {
+                lock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes temporary files of writes interrupted by killed process, every directory is swept
+     * once per process. Recent files may belong to writes of other processes, they are kept.
+     */
+    private static void sweepTempFiles(File dir) {
+        if (dir == null || !sweptDirectories.add(dir.getAbsolutePath())) {
+            return;
+        }
+
+        File[] temps = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return WRITER_TEMP_FILE_NAME.matcher(name).matches();
+            }
+        });
+        if (temps == null) {
+            return;
+        }
+
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MILLIS;
+        for (File temp : temps) {
+            if (!activeTempFiles.contains(temp.getAbsolutePath()) && temp.lastModified() < staleBefore && temp.delete()) {
+                Timber.d("Stale temporary file '%s' deleted", temp);
+            }
+        }
+    }
+
+    private static void commitBatch(List<PendingWrite> batch) {
+        Set<File> directories = new LinkedHashSet<>();
+
+        for (PendingWrite write : batch) {
+            try {
+                rename(write.temp, write.target);
+                directories.add(write.target.getParentFile());
+            } catch (Exception e) {
+                write.failure = e;
+            }
+        }
+
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+
+        for (PendingWrite write : batch) {
+            write.done.countDown();
+        }
+    }
+
+    private static void rename(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            throw new IOException("Failed to rename '" + temp + "' to '" + target + "'");
+        }
+    }
+
+    /**
+     * Syncs directory entry of renamed file, directories can be opened for sync only on API 21+.
+     *
+     * @param directory
+     */
+    static void syncDirectory(File directory) {
+        if (directory == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            Timber.w(e, "Directory '%s' sync failed", directory);
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final File temp;
+        final File target;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception failure;
+
+        PendingWrite(File temp, File target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executes list of batch operations on one storage with configurable parallelism.
+ *
+ * Storage path is resolved once per batch and directories are resolved once per distinct
+ * local path, so per-item cost is only the file operation itself.
+ */
+class BatchExecutor {
+
+    private final File storageRoot;
+    private final Copier copier;
+    private final ConcurrentHashMap<String, File> directories = new ConcurrentHashMap<>();
+
+    /**
+     * Executor constructor.
+     *
+     * @param storagePath absolute path of storage used by the batch
+     * @param copier      copies files of COPY operations and of moves between filesystems
+     */
+    BatchExecutor(String storagePath, Copier copier) {
+        this.storageRoot = new File(storagePath);
+        this.copier = copier;
+    }
+
+    /**
+     * Executes operations and waits for all of them.
+     *
+     * @param operations
+     * @param parallelism number of threads, 1 or less to execute operations on calling thread
+     * @return report with result of every operation in the order of operations
+     */
+    BatchReport execute(List<BatchOperation> operations, int parallelism) throws InterruptedException {
+        final BatchReport.Result[] results = new BatchReport.Result[operations.size()];
+
+        if (parallelism <= 1 || operations.size() <= 1) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executeOperation(operations.get(i));
+            }
+            return new BatchReport(new ArrayList<>(Arrays.asList(results)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, operations.size()));
+        final CountDownLatch done = new CountDownLatch(results.length);
+
+        try {
+            for (int i = 0; i < results.length; i++) {
+                final int index = i;
+                final BatchOperation operation = operations.get(i);
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            results[index] = executeOperation(operation);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new BatchReport(new ArrayList<>(Arrays.asList(results)));
+    }
+
+    private BatchReport.Result executeOperation(BatchOperation operation) {
+        try {
+            if (operation == null) {
+                throw new NullPointerException("Batch operation must not be null");
+            }
+
+            File src = new File(resolveDirectory(operation.getSrcDir()), operation.getFileName());
+
+            switch (operation.getType()) {
+                case BatchOperation.COPY:
+                    copier.copy(src, new File(resolveDirectory(operation.getDestDir()), operation.getNewName()));
+                    break;
+
+                case BatchOperation.MOVE:
+                    move(src, new File(resolveDirectory(operation.getDestDir()), operation.getNewName()));
+                    break;
+
+                case BatchOperation.DELETE:
+                    if (!src.exists()) {
+                        throw new FileNotFoundException("File '" + src + "' does not exist");
+                    }
+                    if (!src.delete()) {
+                        throw new IOException("File '" + src + "' cannot be deleted");
+                    }
+                    break;
+
+                case BatchOperation.RENAME:
+                    File dest = new File(resolveDirectory(operation.getDestDir()), operation.getNewName());
+                    if (!src.renameTo(dest)) {
+                        throw new IOException("Failed to rename '" + src + "' to '" + dest + "'");
+                    }
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown batch operation type " + operation.getType());
+            }
+
+            return new BatchReport.Result(operation, null);
+
+        } catch (Exception e) {
+            return new BatchReport.Result(operation, e);
+        }
+    }
+
+    private void move(File src, File dest) throws IOException {
+        File parent = dest.getParentFile();
+
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Destination '" + parent + "' directory cannot be created");
+        }
+        if (src.renameTo(dest)) {
+            return;
+        }
+
+        copier.copy(src, dest);
+
+        if (!src.delete()) {
+            throw new IOException("Source '" + src + "' cannot be deleted after copy");
+        }
+    }
+
+    private File resolveDirectory(String path) {
+        if (path == null || path.isEmpty()) {
+            return storageRoot;
+        }
+
+        File dir = directories.get(path);
+        if (dir == null) {
+            dir = new File(storageRoot, path);
+            directories.put(path, dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Copies file to destination, destination is replaced if it exists.
+     */
+    interface Copier {
+        void copy(File src, File dest) throws IOException;
+    }
+}
@@ -0,0 +1,94 @@
+package com.honzar.androidfilesmanager.library;
+
+/**
+ * Single file operation of batch executed by FilesManager.executeBatch.
+ * Directories are local paths on storage chosen for the whole batch.
+ */
+public class BatchOperation {
+
+    public static final int COPY = 0;
+    public static final int MOVE = 1;
+    public static final int DELETE = 2;
+    public static final int RENAME = 3;
+
+    private final int type;
+    private final String fileName;
+    private final String srcDir;
+    private final String destDir;
+    private final String newName;
+
+    private BatchOperation(int type, String fileName, String srcDir, String destDir, String newName) {
+        this.type = type;
+        this.fileName = fileName;
+        this.srcDir = srcDir;
+        this.destDir = destDir;
+        this.newName = newName;
+    }
+
+    /**
+     * Copies file from one directory to another.
+     *
+     * @param fileName
+     * @param srcDir
+     * @param destDir
+     * @return operation
+     */
+    public static BatchOperation copy(String fileName, String srcDir, String destDir) {
+        return new BatchOperation(COPY, fileName, srcDir, destDir, fileName);
+    }
+
+    /**
+     * Moves file from one directory to another, by rename if possible.
+     *
+     * @param fileName
+     * @param srcDir
+     * @param destDir
+     * @return operation
+     */
+    public static BatchOperation move(String fileName, String srcDir, String destDir) {
+        return new BatchOperation(MOVE, fileName, srcDir, destDir, fileName);
+    }
+
+    /**
+     * Deletes file with selected name on selected path.
+     *
+     * @param path
+     * @param fileName
+     * @return operation
+     */
+    public static BatchOperation delete(String path, String fileName) {
+        return new BatchOperation(DELETE, fileName, path, null, null);
+    }
+
+    /**
+     * Renames file on selected path with old name to new name.
+     *
+     * @param path
+     * @param oldName
+     * @param newName
+     * @return operation
+     */
+    public static BatchOperation rename(String path, String oldName, String newName) {
+        return new BatchOperation(RENAME, oldName, path, path, newName);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getSrcDir() {
+        return srcDir;
+    }
+
+    public String getDestDir() {
+        return destDir;
+    }
+
+    public String getNewName() {
+        return newName;
+    }
+}
@@ -0,0 +1,75 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-item result report of batch executed by FilesManager.executeBatch.
+ */
+public class BatchReport {
+
+    private final List<Result> results;
+    private final int failedCount;
+
+    BatchReport(List<Result> results) {
+        this.results = Collections.unmodifiableList(results);
+
+        int failed = 0;
+        for (Result result : results) {
+            if (!result.isSuccessful()) {
+                failed++;
+            }
+        }
+        this.failedCount = failed;
+    }
+
+    /**
+     * Returns results in the same order as operations were passed.
+     *
+     * @return list of results
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public int getSucceededCount() {
+        return results.size() - failedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public boolean isSuccessful() {
+        return failedCount == 0;
+    }
+
+    /**
+     * Result of single batch operation.
+     */
+    public static class Result {
+
+        private final BatchOperation operation;
+        private final Exception error;
+
+        Result(BatchOperation operation, Exception error) {
+            this.operation = operation;
+            this.error = error;
+        }
+
+        public BatchOperation getOperation() {
+            return operation;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * @return cause of failure, null if operation succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of heap byte arrays and direct byte buffers for I/O loops, so copying,
+ * reading and writing do not allocate new buffers per call.
+ *
+ * Requests are served from the smallest size class which is large enough. Requests larger
+ * than the largest class are allocated directly and never pooled.
+ */
+class BufferPool {
+
+    static final int DEFAULT_SMALL_BUFFER_SIZE = 8 * 1024;
+    static final int DEFAULT_MEDIUM_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_LARGE_BUFFER_SIZE = 256 * 1024;
+    static final int DEFAULT_MAX_POOLED_BUFFERS = 8;
+
+    private static BufferPool pool;
+
+    private volatile SizeClass[] sizeClasses;
+    private volatile int maxPooledBuffers = DEFAULT_MAX_POOLED_BUFFERS;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    //
+    // INNER METHODS
+    //
+
+    private BufferPool() {
+        configure(DEFAULT_SMALL_BUFFER_SIZE, DEFAULT_MEDIUM_BUFFER_SIZE, DEFAULT_LARGE_BUFFER_SIZE);
+    }
+
+    static synchronized BufferPool getInstance() {
+        if (pool == null) {
+            pool = new BufferPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Sets buffer sizes of size classes, currently pooled buffers are dropped.
+     *
+     * @param smallSize
+     * @param mediumSize
+     * @param largeSize
+     */
+    synchronized void configure(int smallSize, int mediumSize, int largeSize) {
+        if (smallSize <= 0 || mediumSize < smallSize || largeSize < mediumSize) {
+            throw new IllegalArgumentException("Buffer sizes have to be positive and ascending");
+        }
+        sizeClasses = new SizeClass[]{
+                new SizeClass(smallSize), new SizeClass(mediumSize), new SizeClass(largeSize)
+        };
+    }
+
+    /**
+     * Sets how many buffers of every size class and kind are kept in pool.
+     *
+     * @param maxPooledBuffers
+     */
+    void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = Math.max(0, maxPooledBuffers);
+    }
+
+    int getSmallBufferSize() {
+        return sizeClasses[0].size;
+    }
+
+    int getMediumBufferSize() {
+        return sizeClasses[1].size;
+    }
+
+    int getLargeBufferSize() {
+        return sizeClasses[2].size;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Borrows heap buffer from pool, it has to be returned by release method.
+     *
+     * @param minSize minimal buffer length
+     * @return buffer of at least minSize length
+     */
+    byte[] acquireBytes(int minSize) {
+        SizeClass sizeClass = findSizeClass(minSize);
+
+        if (sizeClass != null) {
+            byte[] buffer = sizeClass.heapBuffers.poll();
+
+            if (buffer != null) {
+                sizeClass.heapCount.decrementAndGet();
+                hits.incrementAndGet();
+                return buffer;
+            }
+            misses.incrementAndGet();
+            return new byte[sizeClass.size];
+        }
+
+        misses.incrementAndGet();
+        return new byte[minSize];
+    }
+
+    /**
+     * Borrows direct buffer from pool, it has to be returned by release method.
+     *
+     * @param minSize minimal buffer capacity
+     * @return cleared buffer of at least minSize capacity
+     */
+    ByteBuffer acquireDirect(int minSize) {
+        SizeClass sizeClass = findSizeClass(minSize);
+
+        if (sizeClass != null) {
+            ByteBuffer buffer = sizeClass.directBuffers.poll();
+
+            if (buffer != null) {
+                sizeClass.directCount.decrementAndGet();
+                hits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(sizeClass.size);
+        }
+
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(minSize);
+    }
+
+    /**
+     * Returns borrowed heap buffer to pool.
+     *
+     * @param buffer
+     */
+    void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        SizeClass sizeClass = findExactSizeClass(buffer.length);
+
+        if (sizeClass != null && sizeClass.heapCount.incrementAndGet() <= maxPooledBuffers) {
+            sizeClass.heapBuffers.offer(buffer);
+        } else if (sizeClass != null) {
+            sizeClass.heapCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns borrowed direct buffer to pool.
+     *
+     * @param buffer
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        SizeClass sizeClass = findExactSizeClass(buffer.capacity());
+
+        if (sizeClass != null && sizeClass.directCount.incrementAndGet() <= maxPooledBuffers) {
+            sizeClass.directBuffers.offer(buffer);
+        } else if (sizeClass != null) {
+            sizeClass.directCount.decrementAndGet();
+        }
+    }
+
+    private SizeClass findSizeClass(int minSize) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.size >= minSize) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private SizeClass findExactSizeClass(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.size == size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private static class SizeClass {
+        final int size;
+        final ConcurrentLinkedQueue<byte[]> heapBuffers = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger heapCount = new AtomicInteger();
+        final AtomicInteger directCount = new AtomicInteger();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
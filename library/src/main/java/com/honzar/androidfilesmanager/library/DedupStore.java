@@ -0,0 +1,702 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import timber.log.Timber;
+
+/**
+ * Content-addressed store of deduplicated files.
+ *
+ * Content is stored once as blob named by its SHA-256 hash, files with the same content are
+ * hard links to the blob. References from file paths (relative to storage root) to blobs are
+ * persisted as snapshot and append-only log, reference counts are derived from them and blob is
+ * deleted when its last reference is released.
+ *
+ * Hard links need API 21. Linked files share their content, so they have to be detached
+ * before they are written in place, see detach.
+ */
+class DedupStore {
+
+    static final String STORE_DIR_NAME = ".afm_cas";
+    private static final String REFS_FILE_NAME = "refs";
+    private static final String LOG_FILE_NAME = "refs.log";
+    private static final String TEMP_FILE_PREFIX = "import";
+    private static final String LINK_FILE_SUFFIX = ".fmlink";
+
+    private static final int SNAPSHOT_MAGIC = 0x41464d43;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final File root;
+    private final String rootPath;
+    private final File dir;
+    private final File snapshotFile;
+    private final File logFile;
+    private final AtomicFileWriter snapshotWriter = new AtomicFileWriter();
+    private final TreeMap<String, String> refs = new TreeMap<>();
+    private final Map<String, Integer> counts = new HashMap<>();
+    private DataOutputStream log;
+    private int logRecords;
+
+    /**
+     * Store constructor, store has to be opened before use.
+     *
+     * @param root storage directory
+     */
+    DedupStore(File root) {
+        this.root = root.getAbsoluteFile();
+        this.rootPath = this.root.getPath();
+        this.dir = new File(this.root, STORE_DIR_NAME);
+        this.snapshotFile = new File(dir, REFS_FILE_NAME);
+        this.logFile = new File(dir, LOG_FILE_NAME);
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    /**
+     * Checks if hard links are available.
+     *
+     * @return true on API 21+
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Loads references and verifies them. References of files which were changed or deleted
+     * behind the store are released, copies of blob content (e.g. after storage move) are
+     * linked again. Unreferenced blobs and leftovers of interrupted imports are deleted.
+     *
+     * @throws IOException if store cannot be created or written
+     */
+    synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Deduplication store '" + dir + "' cannot be created");
+        }
+
+        refs.clear();
+        counts.clear();
+
+        try {
+            if (snapshotFile.isFile()) {
+                readSnapshot();
+            }
+            replayLog();
+        } catch (IOException e) {
+            Timber.w(e, "Deduplication references of '%s' cannot be read", root);
+        }
+
+        for (Map.Entry<String, String> ref : new ArrayList<>(refs.entrySet())) {
+            File file = new File(root, ref.getKey());
+            File blob = blobOf(ref.getValue());
+
+            if (!blob.isFile() || !file.isFile() || (!isSameFile(file, blob) && !relink(file, blob, ref.getValue()))) {
+                removeRef(ref.getKey());
+            }
+        }
+
+        deleteUnreferencedBlobs();
+        compact();
+    }
+
+    /**
+     * Closes log, store can be used again and log is reopened then.
+     */
+    synchronized void close() {
+        IOUtils.closeQuietly(log);
+        log = null;
+    }
+
+    /**
+     * Checks if file is inside of storage of this store.
+     *
+     * @param file
+     * @return true if file can be deduplicated by this store
+     */
+    boolean covers(File file) {
+        return keyOf(file) != null;
+    }
+
+    /**
+     * Creates temporary file for imported data, on the same filesystem as blobs.
+     *
+     * @return new empty file
+     * @throws IOException
+     */
+    File createTempFile() throws IOException {
+        return File.createTempFile(TEMP_FILE_PREFIX, AtomicFileWriter.TEMP_FILE_SUFFIX, dir);
+    }
+
+    //
+    // IMPORT METHODS
+    //
+
+    /**
+     * Stores file as link to blob with its content, blob is created by copy of source if it
+     * does not exist yet.
+     *
+     * @param src    source file
+     * @param target covered file to be created or replaced
+     * @param hash   content hash of source
+     * @return true if target was linked, false if link is not possible and target has to be copied
+     * @throws IOException in case of failure
+     */
+    boolean importFile(File src, File target, String hash) throws IOException {
+        File blob = blobOf(hash);
+        File temp = null;
+
+        try {
+            // content is copied without lock, so parallel imports of different files do not wait
+            if (!blob.isFile()) {
+                temp = createTempFile();
+                FileCopier.copyFile(src, temp, false);
+            }
+
+            synchronized (this) {
+                boolean created = false;
+
+                if (temp != null && !blob.isFile()) {
+                    moveToBlob(temp, blob);
+                    created = true;
+                }
+
+                if (link(blob, target, hash)) {
+                    return true;
+                }
+                if (created) {
+                    blob.delete();
+                }
+                return false;
+            }
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Stores imported temporary file as link to blob with its content, temporary file is
+     * moved to blob or deleted if the blob already exists.
+     *
+     * @param temp   file created by createTempFile
+     * @param target covered file to be created or replaced
+     * @throws IOException in case of failure, temporary file is deleted anyway
+     */
+    void importTempFile(File temp, File target) throws IOException {
+        try {
+            String hash = StorageIndex.computeHash(temp);
+            File blob = blobOf(hash);
+
+            synchronized (this) {
+                boolean created = false;
+
+                if (!blob.isFile()) {
+                    moveToBlob(temp, blob);
+                    created = true;
+                }
+
+                if (!link(blob, target, hash)) {
+                    FileCopier.copyFile(blob, target, false);
+
+                    if (created) {
+                        blob.delete();
+                    }
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    //
+    // REFERENCE METHODS
+    //
+
+    /**
+     * Releases references of deleted file or directory (with its content).
+     *
+     * @param file
+     */
+    synchronized void release(File file) {
+        String key = keyOf(file);
+
+        if (key != null && removeTree(key)) {
+            flushLog();
+        }
+    }
+
+    /**
+     * Moves references of renamed file or directory (with its content).
+     *
+     * @param from
+     * @param to
+     */
+    synchronized void rename(File from, File to) {
+        String fromKey = keyOf(from);
+        String toKey = keyOf(to);
+
+        if (fromKey == null || fromKey.isEmpty()) {
+            return;
+        }
+
+        SortedMap<String, String> moved = new TreeMap<>(subtree(fromKey));
+
+        // new references are put before old ones are removed, so blobs are not released meanwhile
+        if (toKey != null && !toKey.isEmpty()) {
+            // replaced files are released, destination linked by copy fallback of move is kept
+            for (Map.Entry<String, String> ref : new ArrayList<>(subtree(toKey).entrySet())) {
+                if (!isSameFile(new File(root, ref.getKey()), blobOf(ref.getValue()))) {
+                    removeRef(ref.getKey());
+                }
+            }
+
+            for (Map.Entry<String, String> ref : moved.entrySet()) {
+                putRef(toKey + ref.getKey().substring(fromKey.length()), ref.getValue());
+            }
+        }
+        for (String key : moved.keySet()) {
+            removeRef(key);
+        }
+        flushLog();
+    }
+
+    /**
+     * Releases references of file or directory content which are not links to their blobs
+     * any more, called after the file was written.
+     *
+     * @param file
+     */
+    synchronized void verify(File file) {
+        String key = keyOf(file);
+        if (key == null) {
+            return;
+        }
+
+        boolean released = false;
+        for (Map.Entry<String, String> ref : new ArrayList<>(subtree(key).entrySet())) {
+            if (!isSameFile(new File(root, ref.getKey()), blobOf(ref.getValue()))) {
+                removeRef(ref.getKey());
+                released = true;
+            }
+        }
+
+        if (released) {
+            flushLog();
+        }
+    }
+
+    /**
+     * Replaces hard linked file by its own copy, so it can be modified in place without
+     * changing the other links. Files which are not linked are not touched.
+     *
+     * @param file
+     * @throws IOException if linked file cannot be detached
+     */
+    static void detach(File file) throws IOException {
+        if (!isLinked(file)) {
+            return;
+        }
+
+        File copy = new File(file.getParentFile(), file.getName() + LINK_FILE_SUFFIX);
+        try {
+            FileCopier.copyFile(file, copy, true);
+            if (!copy.renameTo(file)) {
+                throw new IOException("Failed to detach linked file '" + file + "'");
+            }
+        } finally {
+            copy.delete();
+        }
+    }
+
+    /**
+     * Deletes hard linked file, so it can be rewritten without changing the other links.
+     * Files which are not linked are not touched.
+     *
+     * @param file
+     * @throws IOException if linked file cannot be deleted
+     */
+    static void unlink(File file) throws IOException {
+        if (isLinked(file) && !file.delete()) {
+            throw new IOException("Failed to delete linked file '" + file + "'");
+        }
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    private static boolean isLinked(File file) {
+        if (!isSupported() || file == null || !file.isFile()) {
+            return false;
+        }
+
+        try {
+            return Os.stat(file.getAbsolutePath()).st_nlink > 1;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private String keyOf(File file) {
+        if (file == null) {
+            return null;
+        }
+
+        String path = file.getAbsolutePath();
+        if (path.equals(rootPath) || path.equals(rootPath + File.separator)) {
+            return "";
+        }
+        if (!path.startsWith(rootPath + File.separator)) {
+            return null;
+        }
+
+        String key = path.substring(rootPath.length() + 1);
+        if (key.endsWith(File.separator)) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return (key.equals(STORE_DIR_NAME) || key.startsWith(STORE_DIR_NAME + "/")) ? null : key;
+    }
+
+    private File blobOf(String hash) {
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Returns references of key and its descendants, all references for storage root.
+     */
+    private SortedMap<String, String> subtree(String key) {
+        if (key.isEmpty()) {
+            return refs;
+        }
+
+        SortedMap<String, String> subtree = new TreeMap<>(refs.subMap(key + "/", key + "0"));
+        String hash = refs.get(key);
+
+        if (hash != null) {
+            subtree.put(key, hash);
+        }
+        return subtree;
+    }
+
+    private boolean removeTree(String key) {
+        List<String> keys = new ArrayList<>(subtree(key).keySet());
+
+        for (String removed : keys) {
+            removeRef(removed);
+        }
+        return !keys.isEmpty();
+    }
+
+    private void putRef(String key, String hash) {
+        String previous = refs.put(key, hash);
+        increment(hash, 1);
+        appendRecord(RECORD_PUT, key, hash);
+
+        if (previous != null) {
+            releaseBlob(previous);
+        }
+    }
+
+    private void removeRef(String key) {
+        String hash = refs.remove(key);
+
+        if (hash != null) {
+            appendRecord(RECORD_REMOVE, key, null);
+            releaseBlob(hash);
+        }
+    }
+
+    /**
+     * Decrements reference count of blob and deletes the blob when it is not referenced.
+     */
+    private void releaseBlob(String hash) {
+        if (increment(hash, -1) == 0) {
+            blobOf(hash).delete();
+        }
+    }
+
+    private int increment(String hash, int delta) {
+        Integer count = counts.get(hash);
+        int updated = ((count != null) ? count : 0) + delta;
+
+        if (updated > 0) {
+            counts.put(hash, updated);
+        } else {
+            counts.remove(hash);
+        }
+        return Math.max(0, updated);
+    }
+
+    /**
+     * Links target to blob, target is replaced atomically if it exists.
+     *
+     * @return false if filesystem does not support hard links
+     */
+    private boolean link(File blob, File target, String hash) throws IOException {
+        String key = keyOf(target);
+        File parent = target.getParentFile();
+
+        if (key == null || key.isEmpty() || !isSupported()) {
+            return false;
+        }
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Destination '" + parent + "' directory cannot be created");
+        }
+
+        File temp = new File(parent, target.getName() + LINK_FILE_SUFFIX);
+        temp.delete();
+
+        try {
+            Os.link(blob.getAbsolutePath(), temp.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Timber.d(e, "File '%s' cannot be linked", target);
+            return false;
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Failed to rename '" + temp + "' to '" + target + "'");
+        }
+
+        putRef(key, hash);
+        flushLog();
+        return true;
+    }
+
+    /**
+     * Replaces copy of blob content by link to the blob.
+     *
+     * @return true if file is linked now
+     */
+    private boolean relink(File file, File blob, String hash) {
+        try {
+            if (file.length() != blob.length() || !hash.equals(StorageIndex.computeHash(file))) {
+                return false;
+            }
+
+            File temp = new File(file.getParentFile(), file.getName() + LINK_FILE_SUFFIX);
+            temp.delete();
+            Os.link(blob.getAbsolutePath(), temp.getAbsolutePath());
+
+            if (temp.renameTo(file)) {
+                return true;
+            }
+            temp.delete();
+
+        } catch (IOException | ErrnoException e) {
+            Timber.d(e, "File '%s' cannot be linked again", file);
+        }
+        return false;
+    }
+
+    private void moveToBlob(File temp, File blob) throws IOException {
+        File parent = blob.getParentFile();
+
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Directory '" + parent + "' cannot be created");
+        }
+        if (!temp.renameTo(blob)) {
+            throw new IOException("Failed to rename '" + temp + "' to '" + blob + "'");
+        }
+        // content of blob must not change through any of its links
+        blob.setReadOnly();
+    }
+
+    private static boolean isSameFile(File first, File second) {
+        try {
+            StructStat firstStat = Os.stat(first.getAbsolutePath());
+            StructStat secondStat = Os.stat(second.getAbsolutePath());
+            return firstStat.st_dev == secondStat.st_dev && firstStat.st_ino == secondStat.st_ino;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes blobs without references and leftovers of interrupted imports.
+     */
+    private void deleteUnreferencedBlobs() {
+        File[] buckets = dir.listFiles();
+        if (buckets == null) {
+            return;
+        }
+
+        for (File bucket : buckets) {
+            if (!bucket.isDirectory()) {
+                if (bucket.getName().startsWith(TEMP_FILE_PREFIX)) {
+                    bucket.delete();
+                }
+                continue;
+            }
+
+            File[] blobs = bucket.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+
+            for (File blob : blobs) {
+                if (!counts.containsKey(blob.getName())) {
+                    blob.delete();
+                }
+            }
+        }
+    }
+
+    //
+    // PERSISTENCE METHODS
+    //
+
+    private void readSnapshot() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown deduplication references format");
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String hash = in.readUTF();
+                refs.put(key, hash);
+                increment(hash, 1);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void replayLog() throws IOException {
+        if (!logFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+
+                String key = in.readUTF();
+                if (type == RECORD_PUT) {
+                    String hash = in.readUTF();
+                    String previous = refs.put(key, hash);
+
+                    if (previous != null) {
+                        increment(previous, -1);
+                    }
+                    increment(hash, 1);
+                } else if (type == RECORD_REMOVE) {
+                    String previous = refs.remove(key);
+
+                    if (previous != null) {
+                        increment(previous, -1);
+                    }
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // record was not completely written, store is compacted on open
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void appendRecord(byte type, String key, String hash) {
+        try {
+            if (log == null) {
+                log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            }
+
+            log.writeByte(type);
+            log.writeUTF(key);
+            if (hash != null) {
+                log.writeUTF(hash);
+            }
+            logRecords++;
+
+        } catch (IOException e) {
+            // references are verified against links on the next open
+            Timber.e(e);
+        }
+    }
+
+    /**
+     * Flushes logged changes, log is merged into snapshot when it has grown too much.
+     */
+    private void flushLog() {
+        try {
+            if (logRecords > Math.max(MIN_COMPACTION_RECORDS, refs.size())) {
+                compact();
+            } else if (log != null) {
+                log.flush();
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    /**
+     * Writes all references to new snapshot and starts empty log.
+     */
+    private void compact() throws IOException {
+        close();
+
+        try {
+            snapshotWriter.write(snapshotFile, new AtomicFileWriter.Content() {
+                @Override
+                public void writeTo(FileOutputStream out) throws Exception {
+                    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                    data.writeInt(SNAPSHOT_MAGIC);
+                    data.writeInt(SNAPSHOT_VERSION);
+                    data.writeInt(refs.size());
+
+                    for (Map.Entry<String, String> ref : refs.entrySet()) {
+                        data.writeUTF(ref.getKey());
+                        data.writeUTF(ref.getValue());
+                    }
+                    data.flush();
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        if (logFile.exists() && !logFile.delete()) {
+            throw new IOException("Deduplication references log '" + logFile + "' cannot be deleted");
+        }
+        logRecords = 0;
+    }
+}
@@ -0,0 +1,162 @@
+package com.honzar.androidfilesmanager.library;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import timber.log.Timber;
+
+/**
+ * Copy engine behind all file copy methods.
+ *
+ * Data are moved by FileChannel.transferTo in large chunks, so the kernel copies them without
+ * going through Java heap. Filesystems which do not support the transfer (or transfer only part
+ * of the data) are finished by loop over pooled direct buffer.
+ */
+class FileCopier {
+
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private FileCopier() {
+    }
+
+    /**
+     * Copies file to destination, destination directories are created if needed.
+     *
+     * @param src
+     * @param dest
+     * @param preserveDate true to set last modified time of source to destination
+     * @throws IOException in case of failure
+     */
+    static void copyFile(File src, File dest, boolean preserveDate) throws IOException {
+        copyFile(src, dest, preserveDate, false);
+    }
+
+    /**
+     * Copies file to destination, destination directories are created if needed.
+     *
+     * @param src
+     * @param dest
+     * @param preserveDate true to set last modified time of source to destination
+     * @param sync         true to sync content of destination to disk before it is closed
+     * @throws IOException in case of failure
+     */
+    static void copyFile(File src, File dest, boolean preserveDate, boolean sync) throws IOException {
+        if (src == null || dest == null) {
+            throw new NullPointerException("Source and destination must not be null");
+        }
+        if (!src.exists()) {
+            throw new FileNotFoundException("Source '" + src + "' does not exist");
+        }
+        if (src.isDirectory()) {
+            throw new IOException("Source '" + src + "' exists but is a directory");
+        }
+        if (src.getCanonicalPath().equals(dest.getCanonicalPath())) {
+            throw new IOException("Source '" + src + "' and destination '" + dest + "' are the same");
+        }
+
+        File parent = dest.getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Destination '" + parent + "' directory cannot be created");
+        }
+        if (dest.isDirectory()) {
+            throw new IOException("Destination '" + dest + "' exists but is a directory");
+        }
+
+        FileInputStream in = null;
+        FileOutputStream out = null;
+
+        try {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(dest);
+
+            FileChannel input = in.getChannel();
+            long size = input.size();
+            long copied = transfer(input, 0, size, out.getChannel());
+
+            if (copied != size) {
+                throw new IOException("Failed to copy full contents from '" + src + "' to '" + dest + "'");
+            }
+
+            if (sync) {
+                out.getChannel().force(false);
+            }
+            out.close();
+            out = null;
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+
+        if (preserveDate) {
+            dest.setLastModified(src.lastModified());
+        }
+    }
+
+    /**
+     * Transfers data between channels, partial transfers are repeated and rest of data which
+     * cannot be transferred is copied through pooled buffer.
+     *
+     * @param src
+     * @param position position in source channel
+     * @param count    number of bytes to be transferred
+     * @param dst      destination channel, written from its current position
+     * @return number of transferred bytes, less than count only if source ended
+     * @throws IOException
+     */
+    static long transfer(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        long start = dst.position();
+        long done = 0;
+
+        try {
+            while (done < count) {
+                long transferred = src.transferTo(position + done, Math.min(TRANSFER_CHUNK_SIZE, count - done), dst);
+                if (transferred <= 0) {
+                    break;
+                }
+                done += transferred;
+            }
+        } catch (IOException e) {
+            // some filesystems refuse sendfile, data are copied by buffer loop instead
+            Timber.d(e, "Channel transfer failed after %d bytes", done);
+            dst.position(start + done);
+        }
+
+        return done < count ? done + copyBuffered(src, position + done, count - done, dst) : done;
+    }
+
+    private static long copyBuffered(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquireDirect(pool.getLargeBufferSize());
+        long done = 0;
+
+        try {
+            while (done < count) {
+                buffer.clear();
+                if (count - done < buffer.capacity()) {
+                    buffer.limit((int) (count - done));
+                }
+
+                int read = src.read(buffer, position + done);
+                if (read <= 0) {
+                    break;
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer);
+                }
+                done += read;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,172 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Read and write loops working on buffers borrowed from BufferPool.
+ */
+class FilesIO {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    private FilesIO() {
+    }
+
+    /**
+     * Copies input stream to output stream until EOF.
+     *
+     * @param in
+     * @param out
+     * @return number of copied bytes
+     * @throws IOException
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquireBytes(pool.getMediumBufferSize());
+
+        try {
+            long count = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                count += read;
+            }
+            return count;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 directly into channel, without creating byte array of whole content.
+     *
+     * @param data
+     * @param channel
+     * @throws IOException
+     */
+    static void writeString(CharSequence data, WritableByteChannel channel) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquireDirect(pool.getMediumBufferSize());
+        CharsetEncoder encoder = ENCODER.get();
+        CharBuffer chars = CharBuffer.wrap(data);
+
+        try {
+            encoder.reset();
+
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, buffer, true);
+                checkResult(result);
+                drain(buffer, channel);
+            } while (result.isOverflow());
+
+            do {
+                result = encoder.flush(buffer);
+                checkResult(result);
+                drain(buffer, channel);
+            } while (result.isOverflow());
+
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Decodes UTF-8 stream to String until EOF.
+     *
+     * @param in
+     * @param sizeHint expected number of bytes, 0 if unknown
+     * @return decoded String
+     * @throws IOException
+     */
+    static String readString(InputStream in, int sizeHint) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] bytes = pool.acquireBytes(pool.getMediumBufferSize());
+        char[] chars = new char[pool.getSmallBufferSize()];
+        CharsetDecoder decoder = DECODER.get();
+        StringBuilder builder = new StringBuilder(Math.max(16, sizeHint));
+
+        try {
+            decoder.reset();
+
+            ByteBuffer input = ByteBuffer.wrap(bytes);
+            CharBuffer output = CharBuffer.wrap(chars);
+            boolean eof = false;
+
+            while (!eof) {
+                int read = in.read(bytes, input.position(), bytes.length - input.position());
+
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    input.position(input.position() + read);
+                }
+
+                input.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(input, output, eof);
+                    checkResult(result);
+                    builder.append(chars, 0, output.position());
+                    output.clear();
+                } while (result.isOverflow());
+                input.compact();
+            }
+
+            CoderResult result;
+            do {
+                result = decoder.flush(output);
+                builder.append(chars, 0, output.position());
+                output.clear();
+            } while (result.isOverflow());
+
+            return builder.toString();
+
+        } finally {
+            pool.release(bytes);
+        }
+    }
+
+    private static void checkResult(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
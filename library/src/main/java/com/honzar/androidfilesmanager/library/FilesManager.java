@@ -4,6 +4,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -12,11 +13,14 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.os.StatFs;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Xml;
 import android.webkit.MimeTypeMap;
 
@@ -25,34 +29,42 @@ import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
-import org.xmlpull.v1.XmlSerializer;
-
-import java.io.ByteArrayInputStream;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -70,6 +82,8 @@ public class FilesManager {
     public static final int INTERNAL_STORAGE = 1;
     public static final int EXTERNAL_STORAGE = 2;
 
+    public static final int UNLIMITED_DEPTH = FilesWalker.UNLIMITED_DEPTH;
+
     private static final int EXTERNAL_TO_INTERNAL_STORAGE_RATIO = 2;
     private static final String TAG = FilesManager.class.getName();
 
@@ -79,7 +93,24 @@ public class FilesManager {
     private String externalStoragePath;
     private String internalStoragePath;
     private int currentStorageID;
-    private String storagesConfiguration;
+    private volatile String storagesConfiguration;
+    private volatile String mostCurrentStoragesConfiguration;
+    private final List<StorageChangeListener> storageChangeListeners = new CopyOnWriteArrayList<>();
+    private volatile ParallelFilesWalker parallelWalker;
+    private final AtomicFileWriter atomicFileWriter = new AtomicFileWriter();
+    private volatile boolean atomicWrites;
+    private FilesManagerAsync asyncManager;
+    private final StorageStateCache storageStateCache = new StorageStateCache();
+    private volatile int zipCompressionLevel = ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL;
+    private volatile int zipParallelism = Runtime.getRuntime().availableProcessors();
+    private volatile boolean zipAdaptiveCompression;
+    private volatile StorageIndex storageIndex;
+    private volatile DedupStore dedupStore;
+    private final ListingCache listingCache = new ListingCache();
+    private final Map<String, AssetSync> assetSyncs = new HashMap<>();
+    private volatile int assetParallelism = Runtime.getRuntime().availableProcessors();
+    private volatile AssetIndex assetIndex;
+    private volatile boolean assetIndexLoaded;
 
     /**
      * Singleton method.
@@ -112,11 +143,9 @@ public class FilesManager {
         this.internalStoragePath = resolveInternalStorageString();
         this.externalStoragePath = resolveExternalStorageString();
 
-        // set up current configuration
+        // set up current configuration, last saved configuration is cached to avoid prefs reads
         this.storagesConfiguration = prefsManager.getPrefsLastStoragesConfiguration();
-        if (storagesConfiguration == null) {
-            storagesConfiguration = getStoragesConfiguration();
-        }
+        this.mostCurrentStoragesConfiguration = getStoragesConfiguration();
 
         // get optimal storage
         currentStorageID = prefsManager.getSelectedStorage();
@@ -124,8 +153,17 @@ public class FilesManager {
             currentStorageID = getOptimalStorage();
             prefsManager.saveSelectedStorage(currentStorageID);
             prefsManager.saveLastUserAskedForChangeStorage(System.currentTimeMillis());
-            prefsManager.saveStoragesConfiguration(getStoragesConfiguration());
+            saveStoragesConfiguration(getStoragesConfiguration());
         }
+
+        StorageEventsReceiver.register(mContext, new StorageEventsReceiver.Listener() {
+            @Override
+            public void onStorageMediaChanged(Intent intent) {
+                storageStateCache.invalidateAll();
+                listingCache.clear();
+                updateStoragesConfiguration();
+            }
+        });
     }
 
     //
@@ -182,14 +220,74 @@ public class FilesManager {
     }
 
     /**
-     * Resolves and returns most current storages configuration.
+     * Returns most current storages configuration. Configuration is resolved once and then
+     * updated only on media mount events.
      *
      * @return storages string
      */
     private String getMostCurrentStoragesConfigurations() {
-        String internal = resolveInternalStorageString();
-        String external = resolveExternalStorageString();
-        return internal + external;
+        String configuration = mostCurrentStoragesConfiguration;
+
+        if (configuration == null) {
+            configuration = resolveInternalStorageString() + resolveExternalStorageString();
+            mostCurrentStoragesConfiguration = configuration;
+        }
+        return configuration;
+    }
+
+    /**
+     * Saves storages configuration to prefs and to cached copy.
+     *
+     * @param configuration
+     */
+    private void saveStoragesConfiguration(String configuration) {
+        storagesConfiguration = configuration;
+        prefsManager.saveStoragesConfiguration(configuration);
+    }
+
+    /**
+     * Resolves storages configuration again and notifies listeners if it has changed.
+     */
+    private void updateStoragesConfiguration() {
+        String previous = mostCurrentStoragesConfiguration;
+        String current = resolveInternalStorageString() + resolveExternalStorageString();
+        mostCurrentStoragesConfiguration = current;
+
+        if (current.equals(previous)) {
+            return;
+        }
+
+        String saved = storagesConfiguration;
+        boolean changed = saved != null && !current.equals(saved);
+
+        for (StorageChangeListener listener : storageChangeListeners) {
+            listener.onStoragesChanged(changed);
+        }
+    }
+
+    /**
+     * Resolves storage ID of file by its path.
+     *
+     * @param file
+     * @return EXTERNAL_STORAGE if file is on external storage, INTERNAL_STORAGE otherwise
+     */
+    int resolveStorageId(File file) {
+        String external = externalStoragePath;
+
+        if (file != null && external != null && addSlashToPathIfNeeded(file.getAbsolutePath()).startsWith(external)) {
+            return EXTERNAL_STORAGE;
+        }
+        return INTERNAL_STORAGE;
+    }
+
+    /**
+     * Resolves DEFAULT_STORAGE to currently used storage ID.
+     *
+     * @param storageId
+     * @return INTERNAL_STORAGE or EXTERNAL_STORAGE
+     */
+    int resolveStorageId(int storageId) {
+        return (storageId == DEFAULT_STORAGE) ? currentStorageID : storageId;
     }
 
     /**
@@ -230,6 +328,12 @@ public class FilesManager {
         long availableSpace = -1L;
 
         if (storagePath != null) {
+            Long cached = storageStateCache.getFreeSpace(storagePath);
+            if (cached != null) {
+                return cached;
+            }
+
+            int generation = storageStateCache.getGeneration();
             try {
                 StatFs stat = new StatFs(storagePath);
                 stat.restat(storagePath);
@@ -238,6 +342,7 @@ public class FilesManager {
                 } else {
                     availableSpace = (long) (stat.getAvailableBlocks() * stat.getBlockSize());
                 }
+                storageStateCache.putFreeSpace(storagePath, availableSpace, generation);
 
             } catch (Exception e) {
                 Timber.e(e);
@@ -246,6 +351,151 @@ public class FilesManager {
         return availableSpace;
     }
 
+    /**
+     * Returns external storage state, cached for storage state cache TTL.
+     *
+     * @return one of Environment.MEDIA_* states
+     */
+    private String getExternalStorageState() {
+        String state = storageStateCache.getExternalState();
+
+        if (state == null) {
+            int generation = storageStateCache.getGeneration();
+            state = Environment.getExternalStorageState();
+            storageStateCache.putExternalState(state, generation);
+        }
+        return state;
+    }
+
+    /**
+     * Called after file or directory was created or its content was changed by this manager.
+     *
+     * @param file
+     */
+    private void onFileWritten(File file) {
+        storageStateCache.invalidateFreeSpace();
+        listingCache.invalidate(file);
+
+        StorageIndex index = storageIndex;
+        if (index != null) {
+            index.refresh(file);
+        }
+
+        DedupStore store = dedupStore;
+        if (store != null) {
+            store.verify(file);
+        }
+    }
+
+    /**
+     * Called after file or directory (with its content) was deleted by this manager.
+     *
+     * @param file
+     */
+    private void onFileDeleted(File file) {
+        storageStateCache.invalidateFreeSpace();
+        listingCache.invalidate(file);
+
+        StorageIndex index = storageIndex;
+        if (index != null) {
+            index.refresh(file);
+        }
+
+        DedupStore store = dedupStore;
+        if (store != null) {
+            store.release(file);
+        }
+    }
+
+    /**
+     * Called after file or directory was renamed or moved by rename by this manager.
+     *
+     * @param from
+     * @param to
+     */
+    private void onFileRenamed(File from, File to) {
+        // move between filesystems copies the content
+        storageStateCache.invalidateFreeSpace();
+        listingCache.invalidate(from);
+        listingCache.invalidate(to);
+
+        StorageIndex index = storageIndex;
+        if (index != null) {
+            index.rename(from, to);
+        }
+
+        DedupStore store = dedupStore;
+        if (store != null) {
+            store.rename(from, to);
+        }
+    }
+
+    /**
+     * Checks if file exists. Files known to storage index are not looked up on disk, other files
+     * may be created by other code, so they are looked up and indexed if they exist.
+     *
+     * @param file
+     * @return true if file exists
+     */
+    private boolean fileExists(File file) {
+        StorageIndex index = getStorageIndexOf(file);
+        if (index != null && index.contains(file)) {
+            return true;
+        }
+
+        if (!file.exists()) {
+            return false;
+        }
+        if (index != null) {
+            index.refresh(file);
+        }
+        return true;
+    }
+
+    /**
+     * Returns storage index if it is enabled and it covers given file.
+     *
+     * @param file
+     * @return storage index or null
+     */
+    private StorageIndex getStorageIndexOf(File file) {
+        StorageIndex index = storageIndex;
+        return (index != null && index.covers(file)) ? index : null;
+    }
+
+    /**
+     * Returns deduplication store if it is enabled and it covers given file.
+     *
+     * @param file
+     * @return deduplication store or null
+     */
+    private DedupStore getDedupStoreOf(File file) {
+        DedupStore store = dedupStore;
+        return (store != null && store.covers(file)) ? store : null;
+    }
+
+    /**
+     * Copies file, destination is linked to content stored once if deduplication is enabled.
+     *
+     * @param src
+     * @param dest
+     * @param preserveDate ignored for linked destination, it shares modification time of its content
+     * @throws IOException
+     */
+    private void copyFileToStorage(File src, File dest, boolean preserveDate) throws IOException {
+        DedupStore store = getDedupStoreOf(dest);
+
+        if (store != null && src.isFile()) {
+            String hash = getFileHash(src);
+            if (hash != null && store.importFile(src, dest, hash)) {
+                return;
+            }
+        }
+
+        DedupStore.unlink(dest);
+        FileCopier.copyFile(src, dest, preserveDate);
+    }
+
     private static boolean isExternalStorageDocument(Uri uri) {
         return "com.android.externalstorage.documents".equals(uri.getAuthority());
     }
@@ -267,6 +517,59 @@ public class FilesManager {
         return uri != null && uri.getScheme() != null && "content".equals(uri.getScheme());
     }
 
+    /**
+     * Deletes directory with its content, the tree is deleted in parallel if parallel traversal is enabled.
+     *
+     * @param dir
+     * @throws IOException in case of failure
+     */
+    private void deleteDirectory(File dir) throws IOException {
+        ParallelFilesWalker walker = parallelWalker;
+
+        if (walker != null && dir.isDirectory()) {
+            try {
+                if (walker.delete(dir)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Failed to delete directory " + dir, e);
+            }
+        }
+        // deletes what parallel deletion left and reports files which could not be deleted
+        FileUtils.deleteDirectory(dir);
+    }
+
+    //
+    //  ASYNC METHODS
+    //
+
+    /**
+     * Returns asynchronous facade, its operations run on I/O threads with separate queue for
+     * internal and external storage.
+     *
+     * @return FilesManagerAsync instance
+     */
+    public synchronized FilesManagerAsync async() {
+        if (asyncManager == null) {
+            asyncManager = new FilesManagerAsync(this, FilesManagerAsync.DEFAULT_THREADS_PER_STORAGE);
+        }
+        return asyncManager;
+    }
+
+    /**
+     * Sets number of I/O threads of every storage queue of asynchronous facade. Facade which
+     * was already returned by async is resized, so its references stay usable.
+     *
+     * @param threadsPerStorage
+     */
+    public synchronized void setAsyncThreadsPerStorage(int threadsPerStorage) {
+        if (asyncManager != null) {
+            asyncManager.setThreadsPerStorage(threadsPerStorage);
+        } else {
+            asyncManager = new FilesManagerAsync(this, threadsPerStorage);
+        }
+    }
+
     //
     //  GET FILES METHODS
     //
@@ -348,19 +651,82 @@ public class FilesManager {
      * @return all files from directory.
      */
     public LinkedList<File> getAllFilesFromDir(String path, int storageId) {
+        String storageToBeUsed = getStoragePath(storageId);
+        File dir = new File(addDirectoryToStoragePath(storageToBeUsed, (path != null) ? addSlashToPathIfNeeded(path) : ""));
+
+        List<File> cached = listingCache.get(dir);
+        if (cached != null) {
+            return new LinkedList<>(cached);
+        }
+
+        // tree is watched before it is listed, so changes made meanwhile are not missed
+        ListingCache.Watch watch = listingCache.watch(dir);
         LinkedList<File> inFiles = new LinkedList<>();
+        ParallelFilesWalker walker = parallelWalker;
+
+        try {
+            // storage index is not used, it does not know files created by other code
+            if (walker != null) {
+                inFiles.addAll(walker.collect(dir, UNLIMITED_DEPTH, null));
+            } else {
+                for (File file : FilesWalker.iterable(dir, UNLIMITED_DEPTH, null)) {
+                    inFiles.add(file);
+                }
+            }
+        } catch (RuntimeException e) {
+            listingCache.cancel(watch);
+            throw e;
+        }
+
+        listingCache.put(watch, inFiles);
+        return inFiles;
+    }
 
+    /**
+     * Returns lazy Iterable over files from directory. Directories are listed only when
+     * the iteration reaches them, so the first file is available without scanning whole tree.
+     *
+     * @param path      local directory path
+     * @param storageId preferred storage
+     * @param maxDepth  how many directory levels are entered, UNLIMITED_DEPTH for no limit
+     * @param filter    optional files name filter, directories are entered regardless
+     * @return lazy Iterable over files from directory.
+     */
+    public Iterable<File> walkDir(String path, int storageId, int maxDepth, FilenameFilter filter) {
         String storageToBeUsed = getStoragePath(storageId);
 
         path = (path != null) ? addSlashToPathIfNeeded(path) : "";
         path = addDirectoryToStoragePath(storageToBeUsed, path);
 
-        File dir = new File(path);
-        if (dir.exists()) {
-            inFiles = (LinkedList<File>) FileUtils.listFiles(new File(path), null, true);
+        return FilesWalker.iterable(new File(path), maxDepth, filter);
+    }
+
+    /**
+     * Passes files from directory to visitor until visitor returns false.
+     *
+     * @param path      local directory path
+     * @param storageId preferred storage
+     * @param maxDepth  how many directory levels are entered, UNLIMITED_DEPTH for no limit
+     * @param filter    optional files name filter, directories are entered regardless
+     * @param visitor   called for every file
+     * @return true if whole directory was walked, false if visitor stopped the walk.
+     */
+    public boolean walkDir(String path, int storageId, int maxDepth, FilenameFilter filter, FileVisitor visitor) {
+        if (visitor == null) {
+            return false;
         }
 
-        return inFiles;
+        String storageToBeUsed = getStoragePath(storageId);
+
+        path = (path != null) ? addSlashToPathIfNeeded(path) : "";
+        path = addDirectoryToStoragePath(storageToBeUsed, path);
+
+        try {
+            return FilesWalker.walk(new File(path), maxDepth, filter, visitor);
+        } catch (SecurityException e) {
+            Timber.e(e);
+        }
+        return false;
     }
 
     /**
@@ -391,8 +757,69 @@ public class FilesManager {
     }
 
 
+    /**
+     * Sets number of threads used for directory traversal of getAllFilesFromDir, deleteDir,
+     * deleteStorage and storage moves. Traversal is sequential by default, files are then
+     * returned in no particular order when parallel traversal is used.
+     *
+     * @param parallelism number of threads, 1 or less for sequential traversal
+     */
+    public synchronized void setTraversalParallelism(int parallelism) {
+        if (parallelWalker != null) {
+            if (parallelWalker.getParallelism() == parallelism) {
+                return;
+            }
+            parallelWalker.shutdown();
+            parallelWalker = null;
+        }
+
+        if (parallelism > 1) {
+            parallelWalker = new ParallelFilesWalker(parallelism);
+        }
+    }
+
+    /**
+     * Returns number of threads used for directory traversal.
+     *
+     * @return number of threads, 1 for sequential traversal
+     */
+    public int getTraversalParallelism() {
+        ParallelFilesWalker walker = parallelWalker;
+        return (walker != null) ? walker.getParallelism() : 1;
+    }
+
+    /**
+     * Sets how many listings of getAllFilesFromDir are cached, caching is disabled by default.
+     * Cached directory trees are watched by FileObserver and listings are dropped on any change
+     * in them, trees with hundreds of directories are not cached.
+     *
+     * @param maxListings number of cached listings, 0 to disable caching
+     */
+    public void setListingCacheSize(int maxListings) {
+        listingCache.setMaxListings(maxListings);
+    }
+
+    /**
+     * Returns number of listings answered from listing cache.
+     *
+     * @return number of cache hits
+     */
+    public long getListingCacheHits() {
+        return listingCache.getHits();
+    }
+
+    /**
+     * Returns number of listings which had to walk the storage while listing cache was enabled.
+     *
+     * @return number of cache misses
+     */
+    public long getListingCacheMisses() {
+        return listingCache.getMisses();
+    }
+
+
     //
-    //  GET ALL FILES METHODS
+    //  COPY FILES METHODS
     //
 
     /**
@@ -426,7 +853,9 @@ public class FilesManager {
         destDir = addDirectoryToStoragePath(storageToBeUsed, destDir);
 
         try {
-            FileUtils.copyFile(new File(srcDir, fileName), new File(destDir, fileName), true);
+            File dest = new File(destDir, fileName);
+            copyFileToStorage(new File(srcDir, fileName), dest, true);
+            onFileWritten(dest);
             return true;
         } catch (IOException | NullPointerException e) {
             Timber.e(e);
@@ -448,7 +877,9 @@ public class FilesManager {
         srcDir = addDirectoryToStoragePath(getStoragePath(currentStorageID), srcDir);
 
         try {
-            FileUtils.copyFile(new File(srcDir, fileName), new File(destAbsolutePath, fileName), true);
+            File dest = new File(destAbsolutePath, fileName);
+            copyFileToStorage(new File(srcDir, fileName), dest, true);
+            onFileWritten(dest);
             return true;
         } catch (IOException | NullPointerException e) {
             Timber.e(e);
@@ -520,9 +951,13 @@ public class FilesManager {
 
                 if (exifOrientation != null) {
                     try {
+                        // attributes are saved in place, deduplicated content must not be changed
+                        DedupStore.detach(getFile(destDir, fileName));
+
                         ExifInterface newExif = new ExifInterface(getFile(destDir, fileName).getAbsolutePath());
                         newExif.setAttribute(ExifInterface.TAG_ORIENTATION, exifOrientation);
                         newExif.saveAttributes();
+                        onFileWritten(getFile(destDir, fileName));
                         finalResult = true;
                     } catch (IOException ioe) {
                         Timber.e(ioe);
@@ -559,7 +994,9 @@ public class FilesManager {
         destDir = addDirectoryToStoragePath(storageToBeUsed, destDir);
 
         try {
-            FileUtils.copyFile(srcFile, new File(destDir, fileName), true);
+            File dest = new File(destDir, fileName);
+            copyFileToStorage(srcFile, dest, true);
+            onFileWritten(dest);
             return true;
         } catch (IOException | NullPointerException e) {
             Timber.e(e);
@@ -586,12 +1023,9 @@ public class FilesManager {
             destDir = addDirectoryToStoragePath(getStoragePath(currentStorageID), destDir);
 
             try {
-                File source = new File(sourceUri.getPath());
-                FileChannel src = new FileInputStream(source).getChannel();
-                FileChannel dst = new FileOutputStream(new File(destDir, fileName)).getChannel();
-                dst.transferFrom(src, 0, src.size());
-                src.close();
-                dst.close();
+                File dest = new File(destDir, fileName);
+                copyFileToStorage(new File(sourceUri.getPath()), dest, false);
+                onFileWritten(dest);
                 return true;
             } catch (IOException | NullPointerException | SecurityException ex) {
                 Timber.e(ex);
@@ -613,7 +1047,7 @@ public class FilesManager {
      */
     public boolean checkFileExists(File file) {
         try {
-            if (file.exists())
+            if (fileExists(file))
                 return true;
 
         } catch (Exception e) {
@@ -636,7 +1070,7 @@ public class FilesManager {
         try {
             File file = new File(path, fileName);
 
-            if (file.exists())
+            if (fileExists(file))
                 return true;
 
         } catch (Exception e) {
@@ -675,8 +1109,10 @@ public class FilesManager {
 
             File file = new File(filePath, fileName);
 
-            if (file.createNewFile() && file.exists())
+            if (file.createNewFile() && file.exists()) {
+                onFileWritten(file);
                 return file;
+            }
 
         } catch (Exception e) {
             Timber.e(e);
@@ -697,7 +1133,11 @@ public class FilesManager {
         path = addDirectoryToStoragePath(getStoragePath(currentStorageID), path);
 
         try {
-            return (new File(path, fileName)).delete();
+            File file = new File(path, fileName);
+            if (file.delete()) {
+                onFileDeleted(file);
+                return true;
+            }
         } catch (Exception e) {
             Timber.e(e);
         }
@@ -711,7 +1151,11 @@ public class FilesManager {
      * @return true if succeed, false otherwise.
      */
     public boolean deleteFile(File file) {
-        return file.delete();
+        if (file.delete()) {
+            onFileDeleted(file);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -727,8 +1171,12 @@ public class FilesManager {
         path = addDirectoryToStoragePath(getStoragePath(currentStorageID), path);
 
         try {
-            if (new File(path, oldName).renameTo(new File(path, newName))) {
-                return new File(path, newName);
+            File file = new File(path, oldName);
+            File renamed = new File(path, newName);
+
+            if (file.renameTo(renamed)) {
+                onFileRenamed(file, renamed);
+                return renamed;
             }
         } catch (Exception e) {
             Timber.e(e);
@@ -737,6 +1185,69 @@ public class FilesManager {
         return null;
     }
 
+    //
+    //  BATCH METHODS
+    //
+
+    /**
+     * Executes list of copy, move, delete and rename operations on preferred storage. With
+     * parallelism above 1 operations run concurrently, so they should not depend on each other.
+     *
+     * @param operations
+     * @param storageId   preferred storage
+     * @param parallelism number of threads, 1 to execute operations sequentially
+     * @return report with result of every operation, null if batch was interrupted
+     */
+    public BatchReport executeBatch(List<BatchOperation> operations, int storageId, int parallelism) {
+        if (operations == null) {
+            return null;
+        }
+
+        try {
+            String storagePath = getStoragePath(storageId);
+            BatchReport report = new BatchExecutor(storagePath, new BatchExecutor.Copier() {
+                @Override
+                public void copy(File src, File dest) throws IOException {
+                    copyFileToStorage(src, dest, true);
+                }
+            }).execute(operations, parallelism);
+
+            for (BatchReport.Result result : report.getResults()) {
+                if (result.isSuccessful()) {
+                    onBatchOperationExecuted(storagePath, result.getOperation());
+                }
+            }
+            return report;
+        } catch (InterruptedException e) {
+            Timber.e(e);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Reports files changed by successful batch operation.
+     *
+     * @param storagePath
+     * @param operation
+     */
+    private void onBatchOperationExecuted(String storagePath, BatchOperation operation) {
+        File src = new File(addDirectoryToStoragePath(storagePath, operation.getSrcDir()), operation.getFileName());
+
+        switch (operation.getType()) {
+            case BatchOperation.COPY:
+                onFileWritten(new File(addDirectoryToStoragePath(storagePath, operation.getDestDir()), operation.getNewName()));
+                break;
+            case BatchOperation.MOVE:
+            case BatchOperation.RENAME:
+                onFileRenamed(src, new File(addDirectoryToStoragePath(storagePath, operation.getDestDir()), operation.getNewName()));
+                break;
+            case BatchOperation.DELETE:
+                onFileDeleted(src);
+                break;
+        }
+    }
+
     //
     //  DIRECTORY METHODS
     //
@@ -795,8 +1306,10 @@ public class FilesManager {
 
         if (!folder.exists()) {
 
-            if (folder.mkdirs())
+            if (folder.mkdirs()) {
+                onFileWritten(folder);
                 return folder;
+            }
 
         } else {
             return folder;
@@ -814,12 +1327,15 @@ public class FilesManager {
     public boolean deleteDir(String path) {
         path = (path != null) ? addSlashToPathIfNeeded(path) : "";
         path = addDirectoryToStoragePath(getStoragePath(currentStorageID), path);
+        File dir = new File(path);
 
         try {
-            FileUtils.deleteDirectory(new File(path));
+            deleteDirectory(dir);
         } catch (IOException | NullPointerException e) {
             Timber.e(e);
             return false;
+        } finally {
+            onFileDeleted(dir);
         }
 
         return true;
@@ -838,8 +1354,12 @@ public class FilesManager {
         path = addDirectoryToStoragePath(getStoragePath(currentStorageID), path);
 
         try {
-            if (new File(path, oldName).renameTo(new File(path, newName))) {
-                return new File(path, newName);
+            File file = new File(path, oldName);
+            File renamed = new File(path, newName);
+
+            if (file.renameTo(renamed)) {
+                onFileRenamed(file, renamed);
+                return renamed;
             }
         } catch (Exception e) {
             Timber.e(e);
@@ -848,19 +1368,68 @@ public class FilesManager {
         return null;
     }
 
-    //
-    //  STORAGE METHODS
-    //
-
     /**
-     * Returns current storage File object.
+     * Moves directory from current storage to destination path on preferred storage. Directory is
+     * renamed if both locations share filesystem, its content is copied and deleted otherwise.
      *
-     * @return current storage File object.
+     * @param path
+     * @param dirName
+     * @param destPath
+     * @param storageId preferred destination storage
+     * @return moved directory File object if succeed, null otherwise.
      */
-    public String getCurrentStorage() {
-        return getStoragePath(currentStorageID);
-    }
-
+    public File moveDirectory(String path, String dirName, String destPath, int storageId) {
+        if (dirName == null)
+            return null;
+
+        path = (path != null) ? addSlashToPathIfNeeded(path) : "";
+        path = addDirectoryToStoragePath(getStoragePath(currentStorageID), path);
+
+        destPath = (destPath != null) ? addSlashToPathIfNeeded(destPath) : "";
+        destPath = addDirectoryToStoragePath(getStoragePath(storageId), destPath);
+
+        File src = new File(path, dirName);
+        File dest = new File(destPath, dirName);
+
+        try {
+            File destParent = dest.getParentFile();
+
+            if (!src.isDirectory() || (!destParent.exists() && !destParent.mkdirs())) {
+                return null;
+            }
+            if (!dest.exists() && StorageMigration.isSameFileSystem(src, destParent) && src.renameTo(dest)) {
+                onFileRenamed(src, dest);
+                return dest;
+            }
+
+            try {
+                new StorageMigration(src, dest, getTraversalParallelism() > 1 ? getTraversalParallelism() : 0).run();
+            } finally {
+                onFileDeleted(src);
+                onFileWritten(dest);
+            }
+            return dest;
+
+        } catch (IOException | SecurityException e) {
+            Timber.e(e);
+        }
+
+        return null;
+    }
+
+    //
+    //  STORAGE METHODS
+    //
+
+    /**
+     * Returns current storage File object.
+     *
+     * @return current storage File object.
+     */
+    public String getCurrentStorage() {
+        return getStoragePath(currentStorageID);
+    }
+
     /**
      * Resolves optimal storage from currently available storages.
      *
@@ -892,10 +1461,12 @@ public class FilesManager {
         String storage = getStoragePath(storageId);
 
         try {
-            FileUtils.deleteDirectory(new File(storage));
+            deleteDirectory(new File(storage));
         } catch (IOException | NullPointerException e) {
             Timber.e(e);
             return false;
+        } finally {
+            onFileDeleted(storage != null ? new File(storage) : null);
         }
 
         return true;
@@ -949,20 +1520,69 @@ public class FilesManager {
         task.execute();
     }
 
+    /**
+     * Checks if there is storage move which was interrupted before it finished.
+     *
+     * @return true/false
+     */
+    public boolean hasUnfinishedStorageMove() {
+        int storageId = prefsManager.getPendingStorageMove();
+        return storageId != SharedPreferencesManager.PREFS_NONE_NUM && storageId != currentStorageID;
+    }
+
+    /**
+     * Resumes storage move which was interrupted before it finished. Already moved files are not copied again.
+     *
+     * @param callbacks to inform about result
+     */
+    public void resumeUnfinishedStorageMove(OptimalStorageMoveInterface callbacks) {
+        if (!hasUnfinishedStorageMove()) {
+            if (callbacks != null) {
+                callbacks.moveStorageAlreadyDone();
+            }
+            return;
+        }
+        MoveStorageTask task = new MoveStorageTask(mContext, prefsManager.getPendingStorageMove(), callbacks);
+        task.execute();
+    }
+
     /**
      * Check if there is some changes in storages configuration
      *
      * @return true/false
      */
     public boolean checkIfStoragesChanged() {
-        if (prefsManager.getPrefsLastStoragesConfiguration() == null) { // first launch
+        String saved = storagesConfiguration;
+
+        if (saved == null) { // first launch
             currentStorageID = getOptimalStorage();
             prefsManager.saveSelectedStorage(currentStorageID);
             prefsManager.saveLastUserAskedForChangeStorage(System.currentTimeMillis());
-            prefsManager.saveStoragesConfiguration(getStoragesConfiguration());
+            saveStoragesConfiguration(getStoragesConfiguration());
             return false;
         }
-        return !getMostCurrentStoragesConfigurations().equals(prefsManager.getPrefsLastStoragesConfiguration());
+        return !getMostCurrentStoragesConfigurations().equals(saved);
+    }
+
+    /**
+     * Registers listener notified on the main thread when storages configuration changes, so
+     * checkIfStoragesChanged does not have to be polled.
+     *
+     * @param listener
+     */
+    public void registerStorageChangeListener(StorageChangeListener listener) {
+        if (listener != null && !storageChangeListeners.contains(listener)) {
+            storageChangeListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters storages configuration listener.
+     *
+     * @param listener
+     */
+    public void unregisterStorageChangeListener(StorageChangeListener listener) {
+        storageChangeListeners.remove(listener);
     }
 
     /**
@@ -974,6 +1594,191 @@ public class FilesManager {
         return (getOptimalStorage() == prefsManager.getSelectedStorage());
     }
 
+    //
+    // STORAGE INDEX METHODS
+    //
+
+    /**
+     * Enables persistent index of current storage contents. Existence checks of files known to the
+     * index are then answered without filesystem access, other files are checked on disk and
+     * added to the index. Changes made by this manager keep it up to date. Index is stored in
+     * hidden files in root of the storage.
+     *
+     * First enabling scans whole storage, so call it from background thread right after getting
+     * the manager instance. Disabling deletes the index, because changes made meanwhile would
+     * not get into it.
+     *
+     * @param enabled
+     * @return true if succeed, false otherwise.
+     */
+    public synchronized boolean setStorageIndexEnabled(boolean enabled) {
+        StorageIndex index = storageIndex;
+
+        if (!enabled) {
+            storageIndex = null;
+            if (index != null) {
+                index.delete();
+            }
+            return true;
+        }
+
+        String storage = getStoragePath(currentStorageID);
+        if (storage == null) {
+            return false;
+        }
+        if (index != null && index.getRoot().equals(new File(storage).getAbsoluteFile())) {
+            return true;
+        }
+
+        try {
+            StorageIndex opened = new StorageIndex(new File(storage));
+            opened.open();
+            storageIndex = opened;
+
+            if (index != null) {
+                index.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Checks if storage index is enabled.
+     *
+     * @return true/false
+     */
+    public boolean isStorageIndexEnabled() {
+        return storageIndex != null;
+    }
+
+    /**
+     * Scans current storage again, to be used when files were changed by other code than this manager.
+     *
+     * @return true if succeed, false if index is not enabled or it cannot be written.
+     */
+    public boolean rebuildStorageIndex() {
+        StorageIndex index = storageIndex;
+        if (index == null) {
+            return false;
+        }
+
+        try {
+            index.rebuild();
+            return true;
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Returns files of current storage modified after given time, answered from storage index
+     * if it is enabled.
+     *
+     * @param time in milliseconds since epoch
+     * @return modified files
+     */
+    public List<File> getFilesModifiedSince(long time) {
+        StorageIndex index = storageIndex;
+        if (index != null) {
+            return index.listFilesModifiedSince(time);
+        }
+
+        List<File> files = new LinkedList<>();
+        for (File file : walkDir(null, DEFAULT_STORAGE, UNLIMITED_DEPTH, null)) {
+            if (file.lastModified() > time) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns SHA-256 hash of file content. Hashes of files on current storage are kept in
+     * storage index if it is enabled, so they are computed only once per file change.
+     *
+     * @param file
+     * @return hex encoded hash if succeed, null otherwise.
+     */
+    public String getFileHash(File file) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            StorageIndex index = getStorageIndexOf(file);
+            String hash = (index != null) ? index.getHash(file) : null;
+
+            return (hash != null) ? hash : StorageIndex.computeHash(file);
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return null;
+    }
+
+    //
+    // DEDUPLICATION METHODS
+    //
+
+    /**
+     * Enables deduplication of files copied or imported into current storage. Content of such
+     * files is stored once and files with the same content are hard links to it, so they share
+     * also modification time and they are read-only. Write them only through this manager, it
+     * replaces or detaches the links before writing. Deduplicated content is stored in hidden
+     * directory in root of the storage.
+     *
+     * Enabling verifies stored links, so call it from background thread. Disabling keeps
+     * existing links, they stay valid files.
+     *
+     * @param enabled
+     * @return true if succeed, false if hard links are not supported (API < 21) or store cannot be opened.
+     */
+    public synchronized boolean setDeduplicationEnabled(boolean enabled) {
+        DedupStore store = dedupStore;
+
+        if (!enabled) {
+            dedupStore = null;
+            if (store != null) {
+                store.close();
+            }
+            return true;
+        }
+
+        String storage = getStoragePath(currentStorageID);
+        if (storage == null || !DedupStore.isSupported()) {
+            return false;
+        }
+        if (store != null && store.getRoot().equals(new File(storage).getAbsoluteFile())) {
+            return true;
+        }
+
+        try {
+            DedupStore opened = new DedupStore(new File(storage));
+            opened.open();
+            dedupStore = opened;
+
+            if (store != null) {
+                store.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Checks if deduplication is enabled.
+     *
+     * @return true/false
+     */
+    public boolean isDeduplicationEnabled() {
+        return dedupStore != null;
+    }
+
     //
     // GENERAL INFORMATIVE METHODS
     //
@@ -985,7 +1790,7 @@ public class FilesManager {
      */
     public boolean isExternalStorageWritable() {
         if (externalStoragePath != null) {
-            String state = Environment.getExternalStorageState();
+            String state = getExternalStorageState();
             if (Environment.MEDIA_MOUNTED.equals(state)) {
                 return true;
             }
@@ -999,7 +1804,7 @@ public class FilesManager {
      * @return true/false
      */
     public boolean isExternalStorageReadable() {
-        String state = Environment.getExternalStorageState();
+        String state = getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equals(state) ||
                 Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
             return true;
@@ -1034,175 +1839,403 @@ public class FilesManager {
         return getStorageFreeSpace(internalStoragePath);
     }
 
-
-    //
-    // WRITE OBJECT TO FILE METHODS
-    //
-
     /**
-     * Writes string data to file.
+     * Sets how long are storage free space and external storage state cached. Cache is
+     * invalidated by own writes and deletes and by media mount events.
      *
-     * @param file
-     * @param data
-     * @return true if succeed, false otherwise.
+     * @param ttlMillis time to live in milliseconds, 0 to disable caching
      */
-    public boolean writeStringToFile(File file, String data) {
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            out.write(data.getBytes());
-            out.close();
-            return true;
-        } catch (IOException e) {
-            Timber.e(e);
-        }
-        return false;
+    public void setStorageStateCacheTtl(long ttlMillis) {
+        storageStateCache.setTtl(ttlMillis);
     }
 
     /**
-     * Writes Uri data to file.
+     * Returns number of storage state queries answered from cache.
      *
-     * @param file
-     * @param data
-     * @return true if succeed, false otherwise.
+     * @return number of cache hits
      */
-    public boolean writeDataFromUriToFile(File file, Uri data) {
-        InputStream initialStream = null;
-        boolean result = false;
+    public long getStorageStateCacheHits() {
+        return storageStateCache.getHits();
+    }
 
-        try {
-            initialStream = mContext.getContentResolver().openInputStream(data);
-            byte[] buffer = new byte[initialStream.available()];
-            initialStream.read(buffer);
-            OutputStream outStream = new FileOutputStream(file);
-            outStream.write(buffer);
-            outStream.close();
-            result = true;
-        } catch (IOException |SecurityException e) {
-            Timber.e(e);
-        } finally {
-            if (initialStream != null) {
-                try {
-                    initialStream.close();
-                } catch (IOException e) {
-                    Timber.e(e);
-                }
-            }
-        }
+    /**
+     * Returns number of storage state queries which had to probe the storage.
+     *
+     * @return number of cache misses
+     */
+    public long getStorageStateCacheMisses() {
+        return storageStateCache.getMisses();
+    }
 
-        return result;
+    /**
+     * Resets storage state cache hits and misses counters.
+     */
+    public void resetStorageStateCacheStats() {
+        storageStateCache.resetStats();
     }
 
+
+    //
+    // BUFFER POOL METHODS
+    //
+
     /**
-     * Writes Uri data to file.
+     * Sets sizes of pooled I/O buffers. Every copy, read and write loop borrows the smallest
+     * suitable buffer, so buffers are not allocated per call.
      *
-     * @param data
-     * @param fileName
-     * @param destDir
-     * @return true if succeed, false otherwise.
+     * @param smallSize  small buffer size in Bytes
+     * @param mediumSize medium buffer size in Bytes, used by most copy loops
+     * @param largeSize  large buffer size in Bytes, used by bulk transfers
      */
-    public boolean writeDataFromUriToFile(Uri data, String fileName, String destDir) {
-        destDir = (destDir != null) ? addSlashToPathIfNeeded(destDir) : "";
-        destDir = addDirectoryToStoragePath(getStoragePath(currentStorageID), destDir);
+    public void setBufferPoolSizes(int smallSize, int mediumSize, int largeSize) {
+        BufferPool.getInstance().configure(smallSize, mediumSize, largeSize);
+    }
 
-        return writeDataFromUriToFile(new File(destDir, fileName), data);
+    /**
+     * Sets how many idle buffers of every size are kept in pool.
+     *
+     * @param maxPooledBuffers
+     */
+    public void setBufferPoolCapacity(int maxPooledBuffers) {
+        BufferPool.getInstance().setMaxPooledBuffers(maxPooledBuffers);
     }
 
     /**
-     * Writes Json data to file.
+     * Returns how many buffer requests were served from pool.
      *
-     * @param file
-     * @param data
-     * @return true if succeed, false otherwise.
+     * @return number of pool hits
      */
-    public boolean writeJsonToFile(File file, JSONObject data) {
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            out.write((data.toString()).getBytes());
-            out.close();
-            return true;
-        } catch (IOException e) {
-            Timber.e(e);
-        }
-        return false;
+    public long getBufferPoolHits() {
+        return BufferPool.getInstance().getHits();
     }
 
     /**
-     * Writes Xml data to file.
+     * Returns how many buffer requests needed new allocation.
      *
-     * @param file
-     * @param data
-     * @return true if succeed, false otherwise.
+     * @return number of pool misses
      */
-    public boolean writeXmlToFile(File file, Document data) {
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            StringWriter writer = new StringWriter();
-            XmlSerializer xmlSerializer = Xml.newSerializer();
-            TransformerFactory tf = TransformerFactory.newInstance();
+    public long getBufferPoolMisses() {
+        return BufferPool.getInstance().getMisses();
+    }
 
-            Transformer t = tf.newTransformer();
-            t.setOutputProperty(OutputKeys.INDENT, "yes");
-            t.transform(new DOMSource(data), new StreamResult(writer));
+    /**
+     * Resets buffer pool hits and misses counters.
+     */
+    public void resetBufferPoolStats() {
+        BufferPool.getInstance().resetStats();
+    }
 
-            xmlSerializer.setOutput(writer);
-            xmlSerializer.flush();
 
-            out.write(writer.toString().getBytes());
-            out.close();
-            return true;
+    //
+    // WRITE OBJECT TO FILE METHODS
+    //
 
-        } catch (TransformerConfigurationException tce) {
-            Timber.e(tce);
-        } catch (TransformerException tce) {
-            Timber.e(tce);
-        } catch (IOException ioe) {
-            Timber.e(ioe);
-        }
+    /**
+     * Enables crash-safe writes. Write methods then write to temporary sibling file, sync it
+     * to disk and rename it over the target, so crash never leaves truncated file. Temporary
+     * files left by killed process are not listed and they are deleted when their directory is
+     * written again.
+     *
+     * @param enabled
+     */
+    public void setAtomicWritesEnabled(boolean enabled) {
+        this.atomicWrites = enabled;
+    }
 
+    /**
+     * Enables coalescing of directory syncs of atomic writes. Data of every written file are
+     * still synced separately, but concurrent writes are renamed together and their directories
+     * are synced once per batch, write methods return after their batch is committed. Write
+     * which finds no other write in progress is committed at once.
+     *
+     * @param enabled
+     * @param windowMillis how long the first write of batch waits at most for writes in progress
+     */
+    public void setDirectorySyncCoalescing(boolean enabled, long windowMillis) {
+        atomicFileWriter.setDirectorySyncCoalescing(enabled, windowMillis);
+    }
 
-        return false;
+    /**
+     * Writes string data to file.
+     *
+     * @param file
+     * @param data
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeStringToFile(File file, final String data) {
+        return writeToFile(file, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                FilesIO.writeString(data, out.getChannel());
+            }
+        });
     }
 
     /**
-     * Writes byte[] data to file.
+     * Writes Uri data to file.
      *
      * @param file
      * @param data
      * @return true if succeed, false otherwise.
      */
-    public boolean writeByteArrayToFile(File file, byte[] data) {
+    public boolean writeDataFromUriToFile(File file, Uri data) {
+        return importDataFromUri(file, data) >= 0;
+    }
+
+    /**
+     * Streams Uri data to file with bounded memory. When content provider exposes real file
+     * descriptor, data are transferred by file channels without copying through Java heap.
+     *
+     * @param file
+     * @param data
+     * @return number of written bytes if succeed, -1 otherwise.
+     */
+    public long importDataFromUri(File file, Uri data) {
+        if (file == null || data == null) {
+            return -1;
+        }
+
+        ParcelFileDescriptor descriptor = null;
+        InputStream in = null;
+        FileOutputStream out = null;
+        DedupStore store = getDedupStoreOf(file);
+        File temp = null;
+
         try {
-            FileOutputStream out = new FileOutputStream(file);
-            out.write(data);
+            try {
+                descriptor = mContext.getContentResolver().openFileDescriptor(data, "r");
+            } catch (FileNotFoundException | IllegalArgumentException e) {
+                Timber.d("Uri %s has no file descriptor, data will be streamed", data);
+            }
+
+            // deduplicated data are hashed only when they are complete
+            if (store != null) {
+                temp = store.createTempFile();
+                out = new FileOutputStream(temp);
+            } else {
+                DedupStore.unlink(file);
+                out = new FileOutputStream(file);
+            }
+            long written = 0;
+
+            if (descriptor != null && descriptor.getStatSize() >= 0) {
+                FileInputStream fdIn = new FileInputStream(descriptor.getFileDescriptor());
+                in = fdIn;
+                written = FileCopier.transfer(fdIn.getChannel(), 0, descriptor.getStatSize(), out.getChannel());
+                fdIn.getChannel().position(written);
+            } else {
+                in = mContext.getContentResolver().openInputStream(data);
+            }
+
+            if (in == null) {
+                throw new FileNotFoundException("Uri " + data + " cannot be opened");
+            }
+
+            // reads to EOF, also rest of data which were not transferred by channels
+            written += FilesIO.copy(in, out);
             out.close();
-            return true;
-        } catch (Exception e) {
+            out = null;
+
+            if (temp != null) {
+                store.importTempFile(temp, file);
+            }
+            return written;
+
+        } catch (IOException | SecurityException e) {
             Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+            if (temp != null) {
+                temp.delete();
+            }
+            onFileWritten(file);
+
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
         }
-        return false;
+
+        return -1;
+    }
+
+    /**
+     * Writes Uri data to file.
+     *
+     * @param data
+     * @param fileName
+     * @param destDir
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeDataFromUriToFile(Uri data, String fileName, String destDir) {
+        destDir = (destDir != null) ? addSlashToPathIfNeeded(destDir) : "";
+        destDir = addDirectoryToStoragePath(getStoragePath(currentStorageID), destDir);
+
+        return writeDataFromUriToFile(new File(destDir, fileName), data);
+    }
+
+    /**
+     * Writes Json data to file.
+     *
+     * @param file
+     * @param data
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeJsonToFile(File file, final JSONObject data) {
+        if (data == null) {
+            return false;
+        }
+
+        return writeJsonToFile(file, new JsonStreamWriter() {
+            @Override
+            public void write(JsonWriter writer) throws IOException {
+                JsonStreams.writeValue(writer, data);
+            }
+        });
+    }
+
+    /**
+     * Writes Json data to file incrementally, tokens written by callback go straight to buffered file stream.
+     *
+     * @param file
+     * @param content callback writing the document
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeJsonToFile(File file, final JsonStreamWriter content) {
+        return writeToFile(file, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, FilesIO.UTF_8),
+                        BufferPool.getInstance().getSmallBufferSize()));
+                content.write(writer);
+                writer.flush();
+            }
+        });
+    }
+
+    /**
+     * Writes Xml data to file.
+     *
+     * @param file
+     * @param data
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeXmlToFile(File file, final Document data) {
+        return writeToFile(file, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                BufferedOutputStream stream = new BufferedOutputStream(out, BufferPool.getInstance().getSmallBufferSize());
+                XmlFactories.getTransformer().transform(new DOMSource(data), new StreamResult(stream));
+                stream.flush();
+            }
+        });
     }
 
-    public boolean writeBitmapToFile(File file, Bitmap bitmap) {
+    /**
+     * Writes byte[] data to file.
+     *
+     * @param file
+     * @param data
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeByteArrayToFile(File file, final byte[] data) {
+        return writeToFile(file, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                out.write(data);
+            }
+        });
+    }
+
+    /**
+     * Writes Bitmap to existing file as JPEG.
+     *
+     * @param file
+     * @param bitmap
+     * @return true if succeed, false otherwise.
+     */
+    public boolean writeBitmapToFile(File file, final Bitmap bitmap) {
         if (file == null || !checkFileExists(file) || bitmap == null)
             return false;
 
+        return writeToFile(file, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+            }
+        });
+    }
+
+    /**
+     * Writes content to file, atomically if atomic writes are enabled.
+     *
+     * @param file
+     * @param content
+     * @return true if succeed, false otherwise.
+     */
+    private boolean writeToFile(File file, AtomicFileWriter.Content content) {
         try {
+            if (atomicWrites) {
+                atomicFileWriter.write(file, content);
+                return true;
+            }
+
+            DedupStore.unlink(file);
+
             FileOutputStream out = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
-            out.flush();
-            out.close();
+            try {
+                content.writeTo(out);
+            } finally {
+                out.close();
+            }
+            return true;
+
         } catch (Exception e) {
             Timber.e(e);
-            return false;
+        } finally {
+            onFileWritten(file);
         }
-
-        return true;
+        return false;
     }
 
     //
     // ZIP METHODS
     //
 
+    /**
+     * Sets deflate level of created zip archives.
+     *
+     * @param level 0 (no compression) - 9 (best compression), 5 by default
+     */
+    public void setZipCompressionLevel(int level) {
+        this.zipCompressionLevel = Math.max(0, Math.min(9, level));
+    }
+
+    /**
+     * Sets number of threads compressing new zip archives and extracting archives, entries and
+     * chunks of large entries are compressed in parallel.
+     *
+     * @param parallelism number of threads, number of CPU cores by default
+     */
+    public void setZipParallelism(int parallelism) {
+        this.zipParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Enables adaptive compression of new zip archives. Already compressed files like photos,
+     * videos or archives are detected by extension or by probe of their first bytes and stored
+     * without compression, which saves most of the time spent on them.
+     *
+     * @param enabled
+     */
+    public void setZipAdaptiveCompression(boolean enabled) {
+        this.zipAdaptiveCompression = enabled;
+    }
+
     /**
      * Compress list of files from folder to zip archive on the defined name and path
      *
@@ -1241,87 +2274,388 @@ public class FilesManager {
         String storageToBeUsed = getStoragePath(DEFAULT_STORAGE);
         zipFilePath = addDirectoryToStoragePath(storageToBeUsed, zipFilePath);
 
+        File archive = new File(zipFilePath, zipFileName);
+
         try {
+            if (!archive.exists()) {
+                // new archive is compressed in parallel, existing one is updated by zip4j
+                try {
+                    new ParallelZipWriter(archive, zipCompressionLevel, zipParallelism, password, zipAdaptiveCompression)
+                            .write(files);
+                } catch (IOException e) {
+                    archive.delete();
+                    throw e;
+                } finally {
+                    onFileWritten(archive);
+                }
+                return true;
+            }
 
             ZipParameters parameters = new ZipParameters();
             parameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-            parameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
+            parameters.setCompressionLevel(zipCompressionLevel);
 
             if (password != null && password.length() > 0) {
 
-                parameters.setEncryptFiles(true);
-                parameters.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
-                parameters.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
-                parameters.setPassword(password);
+                parameters.setEncryptFiles(true);
+                parameters.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
+                parameters.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
+                parameters.setPassword(password);
+            }
+
+            // archive is updated in place
+            DedupStore.detach(archive);
+            ZipFile zipFile = new ZipFile(archive);
+
+            try {
+                for (File f : files) {
+
+                    if (f.isFile()) {
+                        if (!AtomicFileWriter.isTempFile(f.getName())) {
+                            zipFile.addFile(f, parameters);
+                        }
+                    } else if (f.isDirectory()) {
+                        zipFile.addFolder(f, parameters);
+                    }
+                }
+            } finally {
+                onFileWritten(archive);
+            }
+            return true;
+
+        } catch (Exception e) {
+            Timber.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Updates zip archive on the defined name and path to contain files from folder
+     *
+     * @param folder
+     * @param zipFilePath
+     * @param zipFileName name of file ending with ".zip"
+     * @param password    optional password
+     * @param compact     true to reclaim space of replaced and removed entries
+     * @return true if succeed, false otherwise.
+     */
+    public boolean updateZipArchive(File folder, String zipFilePath, String zipFileName, String password, boolean compact) {
+        if (folder == null || !folder.isDirectory()) {
+            return false;
+        }
+        return updateZipArchive(Arrays.asList(folder.listFiles()), zipFilePath, zipFileName, password, compact);
+    }
+
+    /**
+     * Updates zip archive on the defined name and path to contain list of files. Only new and
+     * changed files are compressed, entries of files which are not in the list any more are
+     * removed. Archive is created if it does not exist, existing archive keeps its old content if
+     * update fails with an error (not if the process is killed while it is written).
+     *
+     * @param files
+     * @param zipFilePath
+     * @param zipFileName name of file ending with ".zip"
+     * @param password    optional password
+     * @param compact     true to reclaim space of replaced and removed entries
+     * @return true if succeed, false otherwise.
+     */
+    public boolean updateZipArchive(List<File> files, String zipFilePath, String zipFileName, String password, boolean compact) {
+        if (files == null || zipFileName == null || zipFileName.isEmpty()) {
+            return false;
+        }
+        if (!zipFileName.endsWith(".zip")) {
+            zipFileName = zipFileName.concat(".zip");
+        }
+
+        zipFilePath = (zipFilePath != null) ? addSlashToPathIfNeeded(zipFilePath) : "";
+
+        String storageToBeUsed = getStoragePath(DEFAULT_STORAGE);
+        zipFilePath = addDirectoryToStoragePath(storageToBeUsed, zipFilePath);
+
+        File archive = new File(zipFilePath, zipFileName);
+        boolean created = !archive.exists();
+
+        try {
+            DedupStore.detach(archive);
+            new ZipArchiveUpdater(archive, zipCompressionLevel, zipParallelism, password, zipAdaptiveCompression)
+                    .update(files, compact);
+            return true;
+        } catch (Exception e) {
+            Timber.e(e);
+            if (created) {
+                archive.delete();
+            }
+        } finally {
+            onFileWritten(archive);
+        }
+        return false;
+    }
+
+    /**
+     * Extracts list of files from zip archive to folder on defined output path
+     *
+     * @param outputPath
+     * @param zipFile
+     * @param password
+     * @return true if succeed, false otherwise.
+     */
+    public boolean extractFilesFromZip(String outputPath, File zipFile, String password) {
+        return extractFilesFromZip(outputPath, zipFile, password, null, null);
+    }
+
+    /**
+     * Extracts selected files from zip archive to folder on defined output path. Independent
+     * entries are extracted in parallel, entries pointing outside of output folder are rejected.
+     *
+     * @param outputPath
+     * @param zipFile
+     * @param password
+     * @param filter     optional filter of extracted entries
+     * @param listener   optional progress listener, it can cancel the extraction
+     * @return true if succeed, false if extraction failed or was cancelled.
+     */
+    public boolean extractFilesFromZip(String outputPath, File zipFile, String password, ZipEntryFilter filter,
+                                       ZipProgressListener listener) {
+        if (zipFile == null || !zipFile.exists()) {
+            return false;
+        }
+
+        outputPath = (outputPath != null) ? addSlashToPathIfNeeded(outputPath) : "";
+
+        String storageToBeUsed = getStoragePath(DEFAULT_STORAGE);
+        outputPath = addDirectoryToStoragePath(storageToBeUsed, outputPath);
+        File output = new File(outputPath);
+
+        try {
+            return new ZipExtractor(zipFile, password, zipParallelism).extract(output, filter, listener);
+        } catch (Exception e) {
+            Timber.e(e);
+        } finally {
+            onFileWritten(output);
+        }
+        return false;
+    }
+
+
+    //
+    // READ DATA FROM FILE METHODS
+    //
+
+    /**
+     * Reads String content of file.
+     *
+     * @param file
+     * @return String Object if succeed, null otherwise.
+     */
+    public String readStringFromFile(File file) {
+        if (file != null) {
+
+            try {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    return FilesIO.readString(in, (int) Math.min(file.length(), Integer.MAX_VALUE));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads JSONObject content of file.
+     *
+     * @param file
+     * @return JSONObject if succeed, null otherwise.
+     */
+    public JSONObject readJsonFromFile(File file) {
+        JsonReader reader = openJsonReader(file);
+
+        if (reader == null) {
+            return null;
+        }
+
+        try {
+            reader.setLenient(true);
+            return JsonStreams.readObject(reader);
+
+        } catch (IOException | JSONException | IllegalStateException e) {
+            Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return null;
+    }
+
+    /**
+     * Reads Json content of file by pulling tokens, callback can skip parts of document it does not need.
+     *
+     * @param file
+     * @param content callback reading the document
+     * @return true if succeed, false otherwise.
+     */
+    public boolean readJsonFromFile(File file, JsonStreamReader content) {
+        JsonReader reader = openJsonReader(file);
+
+        if (reader == null || content == null) {
+            IOUtils.closeQuietly(reader);
+            return false;
+        }
+
+        try {
+            content.read(reader);
+            return true;
+
+        } catch (IOException | IllegalStateException e) {
+            Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return false;
+    }
+
+    /**
+     * Opens pull-based Json reader over file, reader has to be closed by caller.
+     *
+     * @param file
+     * @return JsonReader if succeed, null otherwise.
+     */
+    public JsonReader openJsonReader(File file) {
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            return new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), FilesIO.UTF_8),
+                    BufferPool.getInstance().getSmallBufferSize()));
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads Xml content of file.
+     *
+     * @param file
+     * @return Xml if succeed, null otherwise.
+     */
+    public Document readXmlFromFile(File file) {
+        InputStream in = openBufferedStream(file);
+
+        if (in != null) {
+
+            try {
+                return XmlFactories.getDocumentBuilder().parse(in);
+
+            } catch (IOException ioe) {
+                Timber.e(ioe);
+            } catch (ParserConfigurationException pce) {
+                Timber.e(pce);
+            } catch (SAXException se) {
+                Timber.e(se);
+            } finally {
+                IOUtils.closeQuietly(in);
             }
+        }
+        return null;
+    }
 
-            ZipFile zipFile = new ZipFile(new File(zipFilePath, zipFileName));
+    /**
+     * Reads Xml content of file by SAX parser, document is passed to handler without building tree.
+     *
+     * @param file
+     * @param handler
+     * @return true if succeed, false otherwise.
+     */
+    public boolean readXmlFromFile(File file, DefaultHandler handler) {
+        InputStream in = openBufferedStream(file);
 
-            for (File f : files) {
+        if (in == null || handler == null) {
+            IOUtils.closeQuietly(in);
+            return false;
+        }
 
-                if (f.isFile()) {
-                    zipFile.addFile(f, parameters);
-                } else if (f.isDirectory()) {
-                    zipFile.addFolder(f, parameters);
-                }
-            }
+        try {
+            XmlFactories.getSaxParser().parse(in, handler);
             return true;
 
-        } catch (Exception e) {
-            Timber.e(e);
+        } catch (IOException ioe) {
+            Timber.e(ioe);
+        } catch (ParserConfigurationException pce) {
+            Timber.e(pce);
+        } catch (SAXException se) {
+            Timber.e(se);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
         return false;
     }
 
     /**
-     * Extracts list of files from zip archive to folder on defined output path
+     * Reads Xml content of file by pull parser, callback pulls only events it needs.
      *
-     * @param outputPath
-     * @param zipFile
-     * @param password
+     * @param file
+     * @param content callback reading the document
      * @return true if succeed, false otherwise.
      */
-    public boolean extractFilesFromZip(String outputPath, File zipFile, String password) {
-        if (zipFile == null || !zipFile.exists()) {
+    public boolean readXmlFromFile(File file, XmlStreamReader content) {
+        InputStream in = openBufferedStream(file);
+
+        if (in == null || content == null) {
+            IOUtils.closeQuietly(in);
             return false;
         }
 
-        outputPath = (outputPath != null) ? addSlashToPathIfNeeded(outputPath) : "";
-
-        String storageToBeUsed = getStoragePath(DEFAULT_STORAGE);
-        outputPath = addDirectoryToStoragePath(storageToBeUsed, outputPath);
-
         try {
-
-            ZipFile zip = new ZipFile(zipFile);
-            if (zip.isEncrypted()) {
-                zip.setPassword(password);
-            }
-            zip.extractAll(outputPath);
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(in, null);
+            content.read(parser);
             return true;
 
-        } catch (Exception e) {
-            Timber.e(e);
+        } catch (IOException ioe) {
+            Timber.e(ioe);
+        } catch (XmlPullParserException xppe) {
+            Timber.e(xppe);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
         return false;
     }
 
+    /**
+     * Opens buffered stream over file.
+     *
+     * @param file
+     * @return InputStream if succeed, null otherwise.
+     */
+    private InputStream openBufferedStream(File file) {
+        if (file == null) {
+            return null;
+        }
 
-    //
-    // READ DATA FROM FILE METHODS
-    //
+        try {
+            return new BufferedInputStream(new FileInputStream(file), BufferPool.getInstance().getSmallBufferSize());
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        return null;
+    }
 
     /**
-     * Reads String content of file.
+     * Reads byte array content of file.
      *
      * @param file
-     * @return String Object if succeed, null otherwise.
+     * @return byte[] if succeed, null otherwise.
      */
-    public String readStringFromFile(File file) {
+    public byte[] readByteArrayFromFile(File file) {
         if (file != null) {
 
             try {
-                return FileUtils.readFileToString(file);
+                return FileUtils.readFileToByteArray(file);
             } catch (IOException e) {
                 Timber.e(e);
             }
@@ -1330,67 +2664,89 @@ public class FilesManager {
     }
 
     /**
-     * Reads JSONObject content of file.
+     * Reads byte range of file without reading the rest of it.
      *
      * @param file
-     * @return JSONObject if succeed, null otherwise.
+     * @param offset position of first byte
+     * @param length number of bytes
+     * @return byte[] if succeed (shorter than length if file ends sooner), null otherwise.
      */
-    public JSONObject readJsonFromFile(File file) {
-        String res = readStringFromFile(file);
+    public byte[] readByteArrayFromFile(File file, long offset, int length) {
+        if (file == null || offset < 0 || length < 0) {
+            return null;
+        }
+
+        FileInputStream in = null;
 
         try {
-            return (res != null) ? new JSONObject(res) : null;
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) <= 0) {
+                    break;
+                }
+            }
 
-        } catch (JSONException e) {
+            if (buffer.hasRemaining()) {
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            }
+            return buffer.array();
+
+        } catch (IOException e) {
             Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
         return null;
     }
 
     /**
-     * Reads Xml content of file.
+     * Maps whole file to memory as read-only buffer, content is loaded by OS on access
+     * and it is not copied to Java heap. Files of 2 GB or more cannot be mapped at once,
+     * map them in ranges.
      *
      * @param file
-     * @return Xml if succeed, null otherwise.
+     * @return MappedByteBuffer if succeed, null otherwise.
      */
-    public Document readXmlFromFile(File file) {
-        String content = readStringFromFile(file);
-
-        if (content != null) {
-
-            try {
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-
-                factory.setNamespaceAware(true);
-                DocumentBuilder builder = factory.newDocumentBuilder();
-
-                return builder.parse(new ByteArrayInputStream(content.getBytes()));
-
-            } catch (IOException ioe) {
-                Timber.e(ioe);
-            } catch (ParserConfigurationException pce) {
-                Timber.e(pce);
-            } catch (SAXException se) {
-                Timber.e(se);
-            }
-        }
-        return null;
+    public MappedByteBuffer mapFile(File file) {
+        return mapFile(file, 0, (file != null) ? file.length() : 0);
     }
 
     /**
-     * Reads byte array content of file.
+     * Maps byte range of file to memory as read-only buffer.
      *
      * @param file
-     * @return byte[] if succeed, null otherwise.
+     * @param offset position of first mapped byte
+     * @param length number of mapped bytes, range is limited by file length and it has to be
+     *               smaller than 2 GB
+     * @return MappedByteBuffer if succeed, null otherwise.
      */
-    public byte[] readByteArrayFromFile(File file) {
-        if (file != null) {
+    public MappedByteBuffer mapFile(File file, long offset, long length) {
+        if (file == null || offset < 0 || length < 0) {
+            return null;
+        }
 
-            try {
-                return FileUtils.readFileToByteArray(file);
-            } catch (IOException e) {
-                Timber.e(e);
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = Math.max(0, Math.min(length, channel.size() - offset));
+
+            if (size > Integer.MAX_VALUE) {
+                Timber.e("Range of %d bytes of file '%s' is too large to be mapped", size, file);
+                return null;
             }
+
+            // mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+
+        } catch (IOException e) {
+            Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(in);
         }
         return null;
     }
@@ -1514,27 +2870,18 @@ public class FilesManager {
     //
 
     /**
-     * Returns array of paths to files on the given path in asset folder
+     * Returns array of paths to files on the given path in asset folder. Listing is taken from
+     * asset index if assets were indexed at build time by asset-index.gradle.
      *
      * @param path
      * @return array of paths to files in asset folder or empty list in case of error or empty folder in path
      */
     public String[] getArrayOfAssetFilesPaths(String path) {
-        String[] list = new String[]{};
-
         if (path == null) {
             path = "";
         }
 
-        if (mContext == null) {
-            return list;
-        }
-
-        try {
-            list = mContext.getAssets().list(path);
-        } catch (IOException e) {
-            return list;
-        }
+        String[] list = listAssets(path);
 
         if (!path.isEmpty()) {
             for (int i = 0; i < list.length; i++) {
@@ -1546,29 +2893,82 @@ public class FilesManager {
     }
 
     /**
-     * Returns array of files names on the given path in asset folder
+     * Returns array of files names on the given path in asset folder. Listing is taken from
+     * asset index if assets were indexed at build time by asset-index.gradle.
      *
      * @param path
      * @return array of paths to files in asset folder or empty list in case of error or empty folder in path
      */
     public String[] getArrayOfAssetFilesNames(String path) {
-        String[] list = new String[]{};
-
         if (path == null) {
             path = "";
         }
 
+        return listAssets(path);
+    }
+
+    /**
+     * Returns size of asset file, from asset index if assets were indexed at build time.
+     *
+     * @param assetFilePath
+     * @return size in bytes, -1 if it cannot be found out without reading the asset (compressed asset)
+     */
+    public long getAssetFileSize(String assetFilePath) {
+        if (mContext == null || assetFilePath == null || assetFilePath.isEmpty()) {
+            return -1;
+        }
+
+        AssetIndex index = getAssetIndex();
+        long size = (index != null) ? index.getSize(assetFilePath) : -1;
+        if (size >= 0) {
+            return size;
+        }
+
+        try {
+            AssetFileDescriptor descriptor = mContext.getAssets().openFd(assetFilePath);
+            try {
+                return descriptor.getLength();
+            } finally {
+                descriptor.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Lists asset directory, from asset index if it contains the directory. Root of assets is
+     * listed by AssetManager, it contains also directories of the platform.
+     */
+    private String[] listAssets(String path) {
         if (mContext == null) {
-            return list;
+            return new String[]{};
+        }
+
+        AssetIndex index = getAssetIndex();
+        if (index != null && !path.isEmpty() && index.isDirectory(path)) {
+            return index.list(path);
         }
 
         try {
-            list = mContext.getAssets().list(path);
+            return mContext.getAssets().list(path);
         } catch (IOException e) {
-            return list;
+            return new String[]{};
         }
+    }
 
-        return list;
+    /**
+     * Returns asset index generated at build time, it is read only once (concurrent first
+     * calls may read it more times, the result is the same).
+     *
+     * @return asset index or null if assets are not indexed
+     */
+    private AssetIndex getAssetIndex() {
+        if (!assetIndexLoaded && mContext != null) {
+            assetIndex = AssetIndex.load(mContext.getAssets());
+            assetIndexLoaded = true;
+        }
+        return assetIndex;
     }
 
     /**
@@ -1590,52 +2990,114 @@ public class FilesManager {
         ensureFoldersOnGivenPath(outputDir);
 
         AssetManager assetManager = mContext.getAssets();
-        InputStream in;
-        OutputStream out;
+        InputStream in = null;
+        OutputStream out = null;
 
         try {
             in = assetManager.open(assetFilePath);
+            DedupStore.unlink(outputDir);
             out = new FileOutputStream(outputDir);
 
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-            }
-            in.close();
-            out.flush();
+            FilesIO.copy(in, out);
             out.close();
+            out = null;
             return true;
 
         } catch (Exception e) {
             Timber.e(e);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+            onFileWritten(outputDir);
         }
         return false;
     }
 
     /**
-     * Copy directory and its content from assets to storage on the given output directory
+     * Copy directory and its content (recursively) from assets to storage on the given output
+     * directory. Extracted files are recorded in manifest in the output directory, so assets
+     * which were already extracted are skipped while the app is not updated. After update only
+     * assets with changed content are extracted again.
      *
      * @param assetDirPath
      * @param outputDirectory
      * @return true in case of success, false otherwise
      */
     public boolean copyDirectoryWithContentFromAssets(String assetDirPath, String outputDirectory) {
+        AssetExtraction extraction = createAssetExtraction(assetDirPath, outputDirectory, null, null);
+        return extraction != null && extraction.run();
+    }
+
+    /**
+     * Starts extraction of directory and its content (recursively) from assets to storage on
+     * the given output directory, see copyDirectoryWithContentFromAssets. Assets are extracted
+     * on background threads, critical assets first.
+     *
+     * @param assetDirPath
+     * @param outputDirectory
+     * @param criticalAssets  optional paths of assets or asset directories (e.g. "data/config.json")
+     *                        which are extracted before the others
+     * @param listener        optional progress listener, it can cancel the extraction
+     * @return running extraction with its completion futures, null in case of invalid arguments
+     */
+    public AssetExtraction startAssetsExtraction(String assetDirPath, String outputDirectory, Collection<String> criticalAssets,
+                                                 AssetProgressListener listener) {
+        AssetExtraction extraction = createAssetExtraction(assetDirPath, outputDirectory, criticalAssets, listener);
+        if (extraction != null) {
+            extraction.start();
+        }
+        return extraction;
+    }
+
+    /**
+     * Sets number of threads extracting assets.
+     *
+     * @param parallelism number of threads, number of CPU cores by default
+     */
+    public void setAssetExtractionParallelism(int parallelism) {
+        this.assetParallelism = Math.max(1, parallelism);
+    }
+
+    private AssetExtraction createAssetExtraction(String assetDirPath, String outputDirectory, Collection<String> criticalAssets,
+                                                  AssetProgressListener listener) {
         if (mContext == null || assetDirPath == null || assetDirPath.isEmpty()) {
-            return false;
+            return null;
         }
 
-        String assets[] = getArrayOfAssetFilesPaths(assetDirPath);
-        try {
-            for (int i = 0; i < assets.length; ++i) {
-                copyFileFromAssets(assets[i], outputDirectory);
+        while (assetDirPath.endsWith("/")) {
+            assetDirPath = assetDirPath.substring(0, assetDirPath.length() - 1);
+        }
+
+        outputDirectory = (outputDirectory != null) ? addSlashToPathIfNeeded(outputDirectory) : "";
+        String storageToBeUsed = getStoragePath(DEFAULT_STORAGE);
+        AssetSync sync = getAssetSync(new File(addDirectoryToStoragePath(storageToBeUsed, outputDirectory)));
+        final File extracted = new File(sync.getOutputRoot(), assetDirPath);
+
+        return new AssetExtraction(sync, assetDirPath, criticalAssets, listener, assetParallelism, new Runnable() {
+            @Override
+            public void run() {
+                onFileWritten(extracted);
             }
-            return true;
+        });
+    }
 
-        } catch (Exception e) {
-            Timber.e(e);
+    /**
+     * Returns asset sync of output directory, syncs are kept to read their manifests only once.
+     *
+     * @param outputRoot
+     * @return asset sync
+     */
+    private AssetSync getAssetSync(File outputRoot) {
+        String key = outputRoot.getAbsolutePath();
+
+        synchronized (assetSyncs) {
+            AssetSync sync = assetSyncs.get(key);
+            if (sync == null) {
+                sync = new AssetSync(mContext, outputRoot, getAssetIndex());
+                assetSyncs.put(key, sync);
+            }
+            return sync;
         }
-        return false;
     }
 
     /**
@@ -1653,13 +3115,11 @@ public class FilesManager {
 
         try {
             InputStream is = mContext.getAssets().open(fileName);
-            int size = is.available();
-            byte[] buffer = new byte[size];
-
-            is.read(buffer);
-            is.close();
-
-            stringContent = new String(buffer, "UTF-8");
+            try {
+                stringContent = FilesIO.readString(is, is.available());
+            } finally {
+                is.close();
+            }
 
         } catch (IOException ex) {
             Timber.e(ex);
@@ -1724,6 +3184,8 @@ public class FilesManager {
         private int storageID;
         private String from;
         private String to;
+        private StorageIndex movedIndex;
+        private DedupStore movedStore;
 
         /**
          * Task constructor.
@@ -1748,6 +3210,8 @@ public class FilesManager {
 
         @Override
         protected void onPreExecute() {
+            prefsManager.savePendingStorageMove(storageID);
+
             if (callbacks != null) {
                 callbacks.moveStorageStarts(this);
             }
@@ -1757,8 +3221,18 @@ public class FilesManager {
         protected Boolean doInBackground(final Void... none) {
 
             try {
-                FileUtils.copyDirectory(new File(from), new File(to), true);
-                FileUtils.deleteDirectory(new File(from));
+                new StorageMigration(new File(from), new File(to), getTraversalParallelism() > 1 ? getTraversalParallelism() : 0).run();
+
+                // index moved with files is not trusted, directories got new modification times
+                if (storageIndex != null) {
+                    movedIndex = new StorageIndex(new File(to));
+                    movedIndex.rebuild();
+                }
+                // links are copied as separate files, they are linked again on open
+                if (dedupStore != null) {
+                    movedStore = new DedupStore(new File(to));
+                    movedStore.open();
+                }
                 return true;
             } catch (Exception e) {
                 Timber.e(e);
@@ -1771,17 +3245,38 @@ public class FilesManager {
         protected void onPostExecute(Boolean result) {
 
             if (result) {
-                if (callbacks != null) {
-                    callbacks.moveStorageEndsSuccess(this);
+                currentStorageID = storageID;
+
+                internalStoragePath = resolveInternalStorageString();
+                externalStoragePath = resolveExternalStorageString();
+                mostCurrentStoragesConfiguration = getStoragesConfiguration();
+                storageStateCache.invalidateAll();
+                listingCache.clear();
+
+                if (movedIndex != null) {
+                    StorageIndex previous = storageIndex;
+                    storageIndex = movedIndex;
+
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
+                if (movedStore != null) {
+                    DedupStore previous = dedupStore;
+                    dedupStore = movedStore;
 
-                    currentStorageID = storageID;
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
 
-                    internalStoragePath = resolveInternalStorageString();
-                    externalStoragePath = resolveExternalStorageString();
+                prefsManager.saveSelectedStorage(storageID);
+                saveStoragesConfiguration(getStoragesConfiguration());
+                prefsManager.saveLastUserAskedForChangeStorage(System.currentTimeMillis());
+                prefsManager.savePendingStorageMove(SharedPreferencesManager.PREFS_NONE_NUM);
 
-                    prefsManager.saveSelectedStorage(storageID);
-                    prefsManager.saveStoragesConfiguration(getStoragesConfiguration());
-                    prefsManager.saveLastUserAskedForChangeStorage(System.currentTimeMillis());
+                if (callbacks != null) {
+                    callbacks.moveStorageEndsSuccess(this);
                 }
             } else {
                 if (callbacks != null) {
@@ -1791,6 +3286,93 @@ public class FilesManager {
         }
     }
 
+    /**
+     * Listener of storages configuration changes, called on the main thread.
+     */
+    public interface StorageChangeListener {
+        /**
+         * @param changed true if current storages configuration differs from the saved one
+         */
+        void onStoragesChanged(boolean changed);
+    }
+
+    /**
+     * Callback for asynchronous operations, called on the main thread.
+     */
+    public interface AsyncCallback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * Callback writing Json document token by token.
+     */
+    public interface JsonStreamWriter {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * Callback reading Json document token by token.
+     */
+    public interface JsonStreamReader {
+        void read(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Callback reading Xml document by pull parser.
+     */
+    public interface XmlStreamReader {
+        void read(XmlPullParser parser) throws XmlPullParserException, IOException;
+    }
+
+    /**
+     * Filter of extracted zip entries.
+     */
+    public interface ZipEntryFilter {
+        /**
+         * @param entryName name of entry with its path inside of archive
+         * @return true if entry should be extracted
+         */
+        boolean accept(String entryName);
+    }
+
+    /**
+     * Listener of zip extraction progress, called from extracting threads.
+     */
+    public interface ZipProgressListener {
+        /**
+         * @param extractedBytes number of already extracted bytes
+         * @param totalBytes     number of bytes of all extracted entries
+         * @param bytesPerSecond average extraction throughput
+         * @return true to continue, false to cancel the extraction
+         */
+        boolean onProgress(long extractedBytes, long totalBytes, long bytesPerSecond);
+    }
+
+    /**
+     * Listener of asset extraction progress, called from extracting threads.
+     */
+    public interface AssetProgressListener {
+        /**
+         * @param processedBytes number of already extracted or verified bytes
+         * @param totalBytes     number of bytes of all processed assets, it grows while compressed
+         *                       assets of unknown size are extracted
+         * @param bytesPerSecond average extraction throughput
+         * @return true to continue, false to cancel the extraction
+         */
+        boolean onProgress(long processedBytes, long totalBytes, long bytesPerSecond);
+    }
+
+    /**
+     * Callback for walking directory tree.
+     */
+    public interface FileVisitor {
+        /**
+         * @param file visited file
+         * @return true to continue the walk, false to stop it
+         */
+        boolean visitFile(File file);
+    }
+
     /**
      * Callbacks for moving storage methods.
      */
@@ -0,0 +1,304 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Asynchronous facade over FilesManager.
+ *
+ * Operations run on bounded I/O executors, internal and external storage have separate queues,
+ * so slow external storage never blocks work on internal storage. Every method returns Future
+ * and optionally delivers its result to callback on the main thread.
+ */
+public class FilesManagerAsync {
+
+    static final int DEFAULT_THREADS_PER_STORAGE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final FilesManager manager;
+    private final ThreadPoolExecutor internalExecutor;
+    private final ThreadPoolExecutor externalExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Constructor.
+     *
+     * @param manager           FilesManager instance
+     * @param threadsPerStorage number of I/O threads of every storage queue
+     */
+    FilesManagerAsync(FilesManager manager, int threadsPerStorage) {
+        this.manager = manager;
+        this.internalExecutor = createExecutor("internal", threadsPerStorage);
+        this.externalExecutor = createExecutor("external", threadsPerStorage);
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String name, int threads) {
+        threads = Math.max(1, threads);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FilesManager-" + name + "-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Changes number of I/O threads of every storage queue, queued operations are kept.
+     *
+     * @param threadsPerStorage
+     */
+    void setThreadsPerStorage(int threadsPerStorage) {
+        resize(internalExecutor, threadsPerStorage);
+        resize(externalExecutor, threadsPerStorage);
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int threads) {
+        threads = Math.max(1, threads);
+
+        // core size must not exceed maximum size at any moment
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Stops I/O threads, already queued operations are finished.
+     */
+    public void shutdown() {
+        internalExecutor.shutdown();
+        externalExecutor.shutdown();
+    }
+
+    //
+    // READ METHODS
+    //
+
+    /**
+     * Reads String content of file asynchronously.
+     *
+     * @param file
+     * @param callback optional, called on main thread
+     * @return Future of String Object, null in case of failure
+     */
+    public Future<String> readStringFromFile(final File file, FilesManager.AsyncCallback<String> callback) {
+        return submit(manager.resolveStorageId(file), new Callable<String>() {
+            @Override
+            public String call() {
+                return manager.readStringFromFile(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * Reads byte array content of file asynchronously.
+     *
+     * @param file
+     * @param callback optional, called on main thread
+     * @return Future of byte[], null in case of failure
+     */
+    public Future<byte[]> readByteArrayFromFile(final File file, FilesManager.AsyncCallback<byte[]> callback) {
+        return submit(manager.resolveStorageId(file), new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return manager.readByteArrayFromFile(file);
+            }
+        }, callback);
+    }
+
+    //
+    // WRITE METHODS
+    //
+
+    /**
+     * Writes string data to file asynchronously.
+     *
+     * @param file
+     * @param data
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> writeStringToFile(final File file, final String data, FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(file), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.writeStringToFile(file, data);
+            }
+        }, callback);
+    }
+
+    /**
+     * Writes byte[] data to file asynchronously.
+     *
+     * @param file
+     * @param data
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> writeByteArrayToFile(final File file, final byte[] data, FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(file), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.writeByteArrayToFile(file, data);
+            }
+        }, callback);
+    }
+
+    //
+    // COPY AND DELETE METHODS
+    //
+
+    /**
+     * Copies file from one directory to another asynchronously.
+     *
+     * @param fileName
+     * @param srcDir
+     * @param destDir
+     * @param storageId
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> copyFile(final String fileName, final String srcDir, final String destDir, final int storageId,
+                                    FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(storageId), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.copyFile(fileName, srcDir, destDir, storageId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes selected file asynchronously.
+     *
+     * @param file
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> deleteFile(final File file, FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(file), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.deleteFile(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes whole directory with its content asynchronously.
+     *
+     * @param path
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> deleteDir(final String path, FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(FilesManager.DEFAULT_STORAGE), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.deleteDir(path);
+            }
+        }, callback);
+    }
+
+    //
+    // ZIP METHODS
+    //
+
+    /**
+     * Compress list of files to zip archive asynchronously.
+     *
+     * @param files
+     * @param zipFilePath
+     * @param zipFileName name of file ending with ".zip"
+     * @param password    optional password
+     * @param callback    optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> compressFilesToZip(final List<File> files, final String zipFilePath, final String zipFileName,
+                                              final String password, FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(FilesManager.DEFAULT_STORAGE), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.compressFilesToZip(files, zipFilePath, zipFileName, password);
+            }
+        }, callback);
+    }
+
+    /**
+     * Extracts files from zip archive asynchronously.
+     *
+     * @param outputPath
+     * @param zipFile
+     * @param password
+     * @param callback optional, called on main thread
+     * @return Future of true if succeed, false otherwise.
+     */
+    public Future<Boolean> extractFilesFromZip(final String outputPath, final File zipFile, final String password,
+                                               FilesManager.AsyncCallback<Boolean> callback) {
+        return submit(manager.resolveStorageId(FilesManager.DEFAULT_STORAGE), new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return manager.extractFilesFromZip(outputPath, zipFile, password);
+            }
+        }, callback);
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    private <T> Future<T> submit(int storageId, Callable<T> operation, final FilesManager.AsyncCallback<T> callback) {
+        FutureTask<T> task = new FutureTask<T>(operation) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+
+                try {
+                    final T result = get();
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                } catch (InterruptedException | ExecutionException e) {
+                    Timber.e(e);
+                }
+            }
+        };
+
+        if (storageId == FilesManager.EXTERNAL_STORAGE) {
+            externalExecutor.execute(task);
+        } else {
+            internalExecutor.execute(task);
+        }
+        return task;
+    }
+}
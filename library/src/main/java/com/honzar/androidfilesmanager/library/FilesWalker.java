@@ -0,0 +1,148 @@
+package com.honzar.androidfilesmanager.library;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy depth-first walker over directory tree.
+ *
+ * Directories are listed only when the walk reaches them, so only the listings of directories
+ * on the current path are held in memory. Depth limit and name filter are applied during
+ * traversal, not after it.
+ */
+class FilesWalker implements Iterator<File> {
+
+    static final int UNLIMITED_DEPTH = -1;
+
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private final int maxDepth;
+    private final FilenameFilter filter;
+    private File next;
+
+    /**
+     * Walker constructor.
+     *
+     * @param root     directory to be walked
+     * @param maxDepth how many directory levels below root are entered, UNLIMITED_DEPTH for no limit
+     * @param filter   optional name filter applied to files (directories are always entered)
+     */
+    FilesWalker(File root, int maxDepth, FilenameFilter filter) {
+        this.maxDepth = maxDepth;
+        this.filter = filter;
+
+        if (root != null && root.isDirectory()) {
+            pushDirectory(root, 0);
+        }
+    }
+
+    /**
+     * Returns Iterable which creates new walker for every iteration.
+     *
+     * @param root
+     * @param maxDepth
+     * @param filter
+     * @return lazy Iterable over files of directory tree
+     */
+    static Iterable<File> iterable(final File root, final int maxDepth, final FilenameFilter filter) {
+        return new Iterable<File>() {
+            @Override
+            public Iterator<File> iterator() {
+                return new FilesWalker(root, maxDepth, filter);
+            }
+        };
+    }
+
+    /**
+     * Walks directory tree and passes every file to visitor until visitor stops the walk.
+     *
+     * @param root
+     * @param maxDepth
+     * @param filter
+     * @param visitor
+     * @return true if whole tree was visited, false if visitor stopped the walk.
+     */
+    static boolean walk(File root, int maxDepth, FilenameFilter filter, FilesManager.FileVisitor visitor) {
+        FilesWalker walker = new FilesWalker(root, maxDepth, filter);
+
+        while (walker.hasNext()) {
+            if (!visitor.visitFile(walker.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private File advance() {
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+
+            if (frame.index >= frame.names.length) {
+                stack.pop();
+                continue;
+            }
+
+            String name = frame.names[frame.index++];
+            File file = new File(frame.dir, name);
+
+            if (file.isDirectory()) {
+                // blobs of deduplication store are files of the storage under other names
+                if (name.equals(DedupStore.STORE_DIR_NAME)) {
+                    continue;
+                }
+                if (maxDepth == UNLIMITED_DEPTH || frame.depth < maxDepth) {
+                    pushDirectory(file, frame.depth + 1);
+                }
+            } else if (!AtomicFileWriter.isTempFile(name) && (filter == null || filter.accept(frame.dir, name))) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void pushDirectory(File dir, int depth) {
+        String[] names = dir.list();
+
+        if (names != null && names.length > 0) {
+            stack.push(new Frame(dir, names, depth));
+        }
+    }
+
+    private static class Frame {
+        final File dir;
+        final String[] names;
+        final int depth;
+        int index;
+
+        Frame(File dir, String[] names, int depth) {
+            this.dir = dir;
+            this.names = names;
+            this.depth = depth;
+        }
+    }
+}
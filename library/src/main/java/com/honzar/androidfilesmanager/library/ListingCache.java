@@ -0,0 +1,356 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of recursive directory listings.
+ *
+ * Every cached directory and its subdirectories are watched by FileObserver, so listing is
+ * dropped as soon as entry is created, deleted or moved anywhere in its tree. Watching starts
+ * before the tree is listed, so changes made while it is listed drop the listing too. Own
+ * changes of the manager invalidate listings synchronously, they do not wait for observer
+ * events. Listings resolved before invalidation are never stored after it.
+ *
+ * Every directory has at most one observer shared by all listings covering it. Before API 29
+ * observers of the same path share one inotify watch and stopping any of them stops the
+ * others. Number of watched directories is limited, inotify watches are shared by the whole
+ * system. Trees with too many directories are not cached.
+ */
+class ListingCache {
+
+    private static final int MAX_OBSERVERS = 256;
+
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final FileFilter DIRECTORIES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isDirectory();
+        }
+    };
+
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, DirectoryObserver> observers = new HashMap<>();
+    private int maxListings;
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Sets maximum number of cached listings, 0 disables caching.
+     *
+     * @param maxListings
+     */
+    synchronized void setMaxListings(int maxListings) {
+        this.maxListings = Math.max(0, maxListings);
+        evict(0);
+    }
+
+    /**
+     * Returns cached listing of directory.
+     *
+     * @param dir
+     * @return unmodifiable list of files, null if not cached
+     */
+    List<File> get(File dir) {
+        Listing listing;
+
+        synchronized (this) {
+            if (maxListings == 0) {
+                return null;
+            }
+            listing = listings.get(dir.getAbsolutePath());
+        }
+
+        if (listing != null) {
+            hits.incrementAndGet();
+            return listing.files;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Starts watching tree of directory which is going to be listed. Watch has to be passed to
+     * put when the listing is resolved or to cancel if it is not.
+     *
+     * @param dir
+     * @return watch, null if listing of directory cannot be cached
+     */
+    Watch watch(File dir) {
+        synchronized (this) {
+            if (maxListings == 0) {
+                return null;
+            }
+        }
+
+        // missing directory cannot be watched
+        if (!dir.isDirectory()) {
+            return null;
+        }
+
+        List<File> dirs = collectDirectories(dir, MAX_OBSERVERS);
+        if (dirs == null) {
+            return null;
+        }
+
+        List<String> paths = new ArrayList<>(dirs.size());
+        for (File watched : dirs) {
+            paths.add(watched.getPath());
+        }
+
+        synchronized (this) {
+            int added = 0;
+            for (String path : paths) {
+                if (!observers.containsKey(path)) {
+                    added++;
+                }
+            }
+
+            evict(added);
+            if (observers.size() + added > MAX_OBSERVERS) {
+                return null;
+            }
+
+            // events of started observers change generation, listing resolved meanwhile is not stored
+            Watch watch = new Watch(dir.getAbsolutePath(), paths, generation);
+            acquire(paths);
+            return watch;
+        }
+    }
+
+    /**
+     * Caches listing of watched directory.
+     *
+     * @param watch watch started before listing was resolved, may be null
+     * @param files listing of directory
+     */
+    synchronized void put(Watch watch, List<File> files) {
+        if (watch == null) {
+            return;
+        }
+
+        // listing invalidated while it was resolved is not stored
+        if (maxListings == 0 || watch.generation != generation) {
+            release(watch.dirs);
+            return;
+        }
+
+        Listing listing = new Listing(watch.path, watch.dirs, Collections.unmodifiableList(new ArrayList<>(files)));
+        Listing replaced = listings.put(listing.path, listing);
+
+        if (replaced != null) {
+            release(replaced.dirs);
+        }
+        evict(0);
+    }
+
+    /**
+     * Stops watch of listing which was not resolved.
+     *
+     * @param watch may be null
+     */
+    synchronized void cancel(Watch watch) {
+        if (watch != null) {
+            release(watch.dirs);
+        }
+    }
+
+    /**
+     * Drops listings affected by change of file or directory.
+     *
+     * @param file changed, created or deleted file or directory
+     */
+    synchronized void invalidate(File file) {
+        if (file == null) {
+            return;
+        }
+
+        String path = file.getAbsolutePath();
+        generation++;
+
+        for (Iterator<Listing> it = listings.values().iterator(); it.hasNext(); ) {
+            Listing listing = it.next();
+
+            // change inside of listed tree or deletion of the tree itself or its parent
+            if (path.equals(listing.path) || path.startsWith(listing.path + File.separator)
+                    || listing.path.startsWith(path + File.separator)) {
+                it.remove();
+                release(listing.dirs);
+            }
+        }
+    }
+
+    /**
+     * Drops all listings, called on media mount events.
+     */
+    synchronized void clear() {
+        generation++;
+
+        for (Listing listing : listings.values()) {
+            release(listing.dirs);
+        }
+        listings.clear();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    /**
+     * Returns directory with all its subdirectories.
+     *
+     * @return directories, null if there are more of them than the limit
+     */
+    private static List<File> collectDirectories(File dir, int limit) {
+        List<File> dirs = new ArrayList<>();
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(dir);
+
+        while (!pending.isEmpty()) {
+            File current = pending.pop();
+            dirs.add(current);
+
+            if (dirs.size() > limit) {
+                return null;
+            }
+
+            File[] children = current.listFiles(DIRECTORIES);
+            if (children != null) {
+                for (File child : children) {
+                    pending.push(child);
+                }
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Starts observers of directories which are not watched yet.
+     */
+    private void acquire(List<String> dirs) {
+        for (String dir : dirs) {
+            DirectoryObserver observer = observers.get(dir);
+
+            if (observer == null) {
+                observer = new DirectoryObserver(dir);
+                observers.put(dir, observer);
+                observer.startWatching();
+            }
+            observer.references++;
+        }
+    }
+
+    /**
+     * Stops observers of directories which are not watched by any other listing.
+     */
+    private void release(List<String> dirs) {
+        for (String dir : dirs) {
+            DirectoryObserver observer = observers.get(dir);
+
+            if (observer != null && --observer.references == 0) {
+                observers.remove(dir);
+                observer.stopWatching();
+            }
+        }
+    }
+
+    /**
+     * Drops least recently used listings until limits are met.
+     *
+     * @param reserved number of observers to be started
+     */
+    private void evict(int reserved) {
+        Iterator<Listing> it = listings.values().iterator();
+
+        while (it.hasNext() && (listings.size() > maxListings || observers.size() + reserved > MAX_OBSERVERS)) {
+            Listing listing = it.next();
+            it.remove();
+            release(listing.dirs);
+        }
+    }
+
+    private synchronized void onDirectoryChanged(String dir) {
+        generation++;
+
+        for (Iterator<Listing> it = listings.values().iterator(); it.hasNext(); ) {
+            Listing listing = it.next();
+
+            if (dir.equals(listing.path) || dir.startsWith(listing.path + File.separator)) {
+                it.remove();
+                release(listing.dirs);
+            }
+        }
+    }
+
+    /**
+     * Watched tree of directory which is being listed.
+     */
+    static class Watch {
+        final String path;
+        final List<String> dirs;
+        final long generation;
+
+        Watch(String path, List<String> dirs, long generation) {
+            this.path = path;
+            this.dirs = dirs;
+            this.generation = generation;
+        }
+    }
+
+    private static class Listing {
+        final String path;
+        final List<String> dirs;
+        final List<File> files;
+
+        Listing(String path, List<String> dirs, List<File> files) {
+            this.path = path;
+            this.dirs = dirs;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Observer of one directory, it drops every listing covering the directory. Observers are
+     * held by the cache, otherwise they would be garbage collected and stop watching.
+     */
+    private class DirectoryObserver extends FileObserver {
+
+        private final String dir;
+        int references;
+
+        DirectoryObserver(String dir) {
+            super(dir, OBSERVED_EVENTS);
+            this.dir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if ((event & OBSERVED_EVENTS) != 0) {
+                onDirectoryChanged(dir);
+            }
+        }
+    }
+}
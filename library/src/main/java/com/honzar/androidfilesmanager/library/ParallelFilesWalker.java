@@ -0,0 +1,323 @@
+package com.honzar.androidfilesmanager.library;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel walker over directory tree.
+ *
+ * Every subdirectory is forked as separate task to bounded thread pool, so listing and
+ * stat calls of independent subtrees run concurrently. Files are passed to visitor from
+ * worker threads, in no particular order.
+ */
+class ParallelFilesWalker {
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final int parallelism;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Walker constructor.
+     *
+     * @param parallelism number of worker threads
+     */
+    ParallelFilesWalker(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = new ThreadPoolExecutor(this.parallelism, this.parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Stops worker threads once their queued directories are visited. Directories of running
+     * walks which cannot be forked any more are visited on the forking thread, so the walks are
+     * finished sequentially.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Walks directory tree in parallel and passes every file to visitor. Visitor has to be thread safe.
+     *
+     * @param root
+     * @param maxDepth how many directory levels below root are entered, FilesWalker.UNLIMITED_DEPTH for no limit
+     * @param filter   optional name filter applied to files
+     * @param visitor
+     * @return true if whole tree was visited, false if visitor stopped the walk or walk failed.
+     */
+    boolean walk(File root, int maxDepth, FilenameFilter filter, FilesManager.FileVisitor visitor) {
+        if (root == null || !root.isDirectory()) {
+            return true;
+        }
+
+        Walk walk = new Walk(maxDepth, filter, visitor);
+        walk.fork(root, 0);
+
+        try {
+            walk.done.await();
+        } catch (InterruptedException e) {
+            walk.stopped.set(true);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (walk.failure != null) {
+            throw walk.failure;
+        }
+        return !walk.stopped.get();
+    }
+
+    /**
+     * Collects all files of directory tree in parallel.
+     *
+     * @param root
+     * @param maxDepth
+     * @param filter
+     * @return list of files in no particular order.
+     */
+    List<File> collect(File root, int maxDepth, FilenameFilter filter) {
+        final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<>();
+
+        walk(root, maxDepth, filter, new FilesManager.FileVisitor() {
+            @Override
+            public boolean visitFile(File file) {
+                files.add(file);
+                return true;
+            }
+        });
+
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Deletes directory tree in parallel. Files are deleted by worker threads and every directory
+     * is deleted as soon as all its children are deleted, symbolic links are not followed.
+     *
+     * @param root
+     * @return true if whole tree was deleted, false if some file could not be deleted or walk was interrupted.
+     */
+    boolean delete(File root) {
+        if (root == null || !root.exists()) {
+            return true;
+        }
+
+        Deletion deletion = new Deletion();
+        deletion.fork(deletion.new Node(root, null));
+
+        try {
+            deletion.done.await();
+        } catch (InterruptedException e) {
+            deletion.stopped.set(true);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (deletion.failure != null) {
+            throw deletion.failure;
+        }
+        return !deletion.failed.get();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // walker was shut down
+            task.run();
+        }
+    }
+
+    private class Walk {
+        final int maxDepth;
+        final FilenameFilter filter;
+        final FilesManager.FileVisitor visitor;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile RuntimeException failure;
+
+        Walk(int maxDepth, FilenameFilter filter, FilesManager.FileVisitor visitor) {
+            this.maxDepth = maxDepth;
+            this.filter = filter;
+            this.visitor = visitor;
+        }
+
+        void fork(final File dir, final int depth) {
+            pending.incrementAndGet();
+
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        visitDirectory(dir, depth);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        stopped.set(true);
+                    } finally {
+                        complete();
+                    }
+                }
+            };
+
+            execute(task);
+        }
+
+        void complete() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        void visitDirectory(File dir, int depth) {
+            String[] names = dir.list();
+
+            if (names == null) {
+                return;
+            }
+
+            for (String name : names) {
+                if (stopped.get()) {
+                    return;
+                }
+
+                File file = new File(dir, name);
+
+                if (file.isDirectory()) {
+                    // blobs of deduplication store are files of the storage under other names
+                    if (name.equals(DedupStore.STORE_DIR_NAME)) {
+                        continue;
+                    }
+                    if (maxDepth == FilesWalker.UNLIMITED_DEPTH || depth < maxDepth) {
+                        fork(file, depth + 1);
+                    }
+                } else if (!AtomicFileWriter.isTempFile(name) && (filter == null || filter.accept(dir, name))) {
+                    if (!visitor.visitFile(file)) {
+                        stopped.set(true);
+                    }
+                }
+            }
+        }
+    }
+
+    private class Deletion {
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile RuntimeException failure;
+
+        void fork(final Node node) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deleteChildren(node);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        stopped.set(true);
+                    } finally {
+                        node.release();
+                    }
+                }
+            });
+        }
+
+        void deleteChildren(Node node) {
+            File[] children = node.dir.listFiles();
+
+            if (children == null) {
+                return;
+            }
+
+            for (File child : children) {
+                if (stopped.get()) {
+                    failed.set(true);
+                    return;
+                }
+
+                if (isDirectory(child)) {
+                    node.remaining.incrementAndGet();
+                    fork(new Node(child, node));
+                } else if (!child.delete()) {
+                    failed.set(true);
+                }
+            }
+        }
+
+        /**
+         * Returns true for directories which are not symbolic links, links are deleted as files.
+         */
+        boolean isDirectory(File file) {
+            if (!file.isDirectory()) {
+                return false;
+            }
+
+            try {
+                return !FileUtils.isSymlink(file);
+            } catch (IOException e) {
+                failed.set(true);
+                return false;
+            }
+        }
+
+        /**
+         * Directory being deleted, it waits for its own listing and every forked subdirectory.
+         */
+        class Node {
+            final File dir;
+            final Node parent;
+            final AtomicInteger remaining = new AtomicInteger(1);
+
+            Node(File dir, Node parent) {
+                this.dir = dir;
+                this.parent = parent;
+            }
+
+            void release() {
+                if (remaining.decrementAndGet() > 0) {
+                    return;
+                }
+
+                if (!stopped.get() && !dir.delete()) {
+                    failed.set(true);
+                }
+
+                if (parent != null) {
+                    parent.release();
+                } else {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FilesManager-walker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
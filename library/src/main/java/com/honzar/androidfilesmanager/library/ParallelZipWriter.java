@@ -0,0 +1,1127 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import net.lingala.zip4j.crypto.AESEncrpyter;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.util.Zip4jConstants;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Zip archive writer compressing entries on worker threads.
+ *
+ * Every file is compressed as separate task, files larger than one chunk are split into chunks
+ * compressed independently (with previous 32 KB as preset dictionary) and joined by sync flush,
+ * so even single large file uses all workers. Compressed blocks are written in order by calling
+ * thread, entries are laid out the same way as zip4j addFile and addFolder lay them out.
+ *
+ * In adaptive mode, entries detected as incompressible (by extension or by probe compression of
+ * their first bytes) are stored instead of deflated.
+ *
+ * With password, entries are encrypted by AES-256 in WinZip AE-2 format, which zip4j reads.
+ * Chunking needs Deflater sync flush available from API 19, large files are compressed by
+ * calling thread on older devices.
+ */
+class ParallelZipWriter {
+
+    static final int DEFAULT_COMPRESSION_LEVEL = Zip4jConstants.DEFLATE_LEVEL_NORMAL;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int AES_EXTRA_ID = 0x9901;
+
+    private static final int METHOD_UNDECIDED = -1;
+    static final int METHOD_STORE = 0;
+    static final int METHOD_DEFLATE = 8;
+    private static final int METHOD_AES = 99;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int VERSION_AES = 51;
+
+    static final int FLAG_ENCRYPTED = 1;
+    static final int FLAG_UTF8 = 1 << 11;
+    private static final int ATTRIBUTE_DIRECTORY = 0x10;
+
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    // sizes of larger entries are stored in zip64 extra field, compressed size may exceed original one a bit
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+
+    private static final int AES_SALT_LENGTH = 16;
+    private static final int AES_VERIFIER_LENGTH = 2;
+    private static final int AES_MAC_LENGTH = 10;
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final int PROBE_SIZE = 16 * 1024;
+    // entry is stored if deflated probe keeps more than 90 % of its size
+    private static final int PROBE_STORE_RATIO_PERCENT = 90;
+    private static final String[] INCOMPRESSIBLE_EXTENSIONS = {
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac",
+            "mp4", "m4v", "3gp", "mkv", "webm", "mov", "avi",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "apk", "jar", "aar",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub", "woff", "woff2"
+    };
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final File archive;
+    private final int level;
+    private final int parallelism;
+    private final char[] password;
+    private final boolean adaptive;
+    private final int chunkSize;
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Writer constructor.
+     *
+     * @param archive     zip file to be created
+     * @param level       deflate level 0 - 9
+     * @param parallelism number of compressing threads
+     * @param password    optional password, entries are encrypted by AES-256 if set
+     * @param adaptive    true to store incompressible entries instead of deflating them
+     */
+    ParallelZipWriter(File archive, int level, int parallelism, String password, boolean adaptive) {
+        this.archive = archive;
+        this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.parallelism = Math.max(1, parallelism);
+        this.password = (password != null && password.length() > 0) ? password.toCharArray() : null;
+        this.adaptive = adaptive;
+        // chunk with its dictionary and compressed output fit into large pooled buffers
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, bufferPool.getLargeBufferSize() / 2);
+    }
+
+    /**
+     * Writes files and directories (with their content) to new archive.
+     *
+     * @param files
+     * @throws IOException in case of failure, archive is incomplete then
+     */
+    void write(List<File> files) throws IOException {
+        List<Entry> entries = plan(files);
+        FileOutputStream stream = new FileOutputStream(archive);
+
+        try {
+            writeEntries(stream.getChannel(), 0, 0, entries, Collections.<byte[]>emptyList());
+            stream.getChannel().force(false);
+            stream.close();
+            stream = null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Writes entries from given position of archive followed by central directory of kept and
+     * written entries, archive is truncated after the central directory.
+     *
+     * Written data may be placed elsewhere than at their archive offset and moved there later,
+     * offsets in headers and central directory are counted from given offset then.
+     *
+     * @param channel      archive channel
+     * @param position     position of the first written entry in channel
+     * @param offset       archive offset of the first written entry
+     * @param entries      entries to be compressed and written
+     * @param keptRecords  raw central directory records of entries already present in archive
+     * @throws IOException in case of failure, archive is incomplete then
+     */
+    void writeEntries(FileChannel channel, long position, long offset, List<Entry> entries, List<byte[]> keptRecords)
+            throws IOException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        channel.position(position);
+        Output out = new Output(channel, position, offset, bufferPool.acquireBytes(bufferPool.getLargeBufferSize()));
+        Pipeline pipeline = new Pipeline(executor, entries);
+
+        try {
+            for (Entry entry : entries) {
+                writeEntry(out, entry, pipeline);
+            }
+            writeCentralDirectory(out, entries, keptRecords);
+            out.flush();
+            channel.truncate(out.channelPosition());
+
+        } finally {
+            pipeline.cancel();
+            executor.shutdownNow();
+            bufferPool.release(out.buffer);
+
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    //
+    // PLANNING METHODS
+    //
+
+    /**
+     * Creates entries of files, directories are entered recursively. Later file with the same
+     * entry name replaces earlier one, as zip4j does.
+     *
+     * @param files
+     * @return entries in archive order
+     */
+    List<Entry> plan(List<File> files) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+
+        for (File file : files) {
+            if (file == null) {
+                continue;
+            }
+            if (file.isFile()) {
+                if (!AtomicFileWriter.isTempFile(file.getName())) {
+                    addEntry(entries, file, file.getName());
+                }
+            } else if (file.isDirectory()) {
+                addDirectory(entries, file, file.getName() + "/");
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private void addDirectory(Map<String, Entry> entries, File dir, String name) {
+        addEntry(entries, dir, name);
+
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addDirectory(entries, child, name + child.getName() + "/");
+            } else if (!AtomicFileWriter.isTempFile(child.getName())) {
+                addEntry(entries, child, name + child.getName());
+            }
+        }
+    }
+
+    private void addEntry(Map<String, Entry> entries, File file, String name) {
+        boolean directory = file.isDirectory();
+        Entry entry = new Entry(file, name, directory, directory ? 0 : file.length(), toDosTime(file.lastModified()));
+
+        if (directory || entry.length == 0) {
+            entry.method = METHOD_STORE;
+        } else {
+            entry.method = adaptive ? METHOD_UNDECIDED : METHOD_DEFLATE;
+        }
+        entry.encrypted = password != null && !directory;
+        entry.zip64 = entry.length >= ZIP64_ENTRY_THRESHOLD;
+
+        entries.remove(name);
+        entries.put(name, entry);
+    }
+
+    //
+    // WRITE METHODS
+    //
+
+    private void writeEntry(Output out, Entry entry, Pipeline pipeline) throws IOException {
+        entry.offset = out.position();
+
+        int chunks = chunkCount(entry);
+        boolean inline = isInline(entry);
+        Block first = null;
+
+        // method of entry is decided when its first chunk is compressed, before header is written
+        if (inline) {
+            resolveMethod(entry);
+        } else if (chunks > 0) {
+            first = pipeline.next();
+        }
+
+        // sizes are known in advance for entries compressed as one block, others are patched afterwards
+        boolean sizesKnown = chunks == 0 || (chunks == 1 && !inline);
+        if (sizesKnown) {
+            entry.crc = (first != null) ? first.crc : 0;
+            entry.compressedSize = ((first != null) ? first.length : 0) + (entry.encrypted ? aesOverhead() : 0);
+        }
+
+        byte[] name = entry.name.getBytes(FilesIO.UTF_8);
+        byte[] extra = localExtra(entry);
+        long sizesOffset = entry.zip64 ? entry.offset + 30 + name.length + 4 : entry.offset + 18;
+
+        out.putInt(LOCAL_HEADER_SIGNATURE);
+        out.putShort(versionNeeded(entry));
+        out.putShort(flags(entry));
+        out.putShort(entry.encrypted ? METHOD_AES : entry.method);
+        out.putInt(entry.dosTime);
+        out.putInt(entry.encrypted ? 0 : entry.crc);
+        out.putInt(entry.zip64 ? ZIP64_LIMIT : entry.compressedSize);
+        out.putInt(entry.zip64 ? ZIP64_LIMIT : entry.length);
+        out.putShort(name.length);
+        out.putShort(extra.length);
+        out.put(name, 0, name.length);
+        out.put(extra, 0, extra.length);
+
+        EntryOutput data = new EntryOutput(out, entry.encrypted);
+
+        if (inline) {
+            compressInline(entry, data);
+        } else if (first != null) {
+            CRC32Combiner crc = new CRC32Combiner();
+
+            for (int i = 0; i < chunks; i++) {
+                Block block = (i == 0) ? first : pipeline.next();
+                crc.add(block.crc, block.rawLength);
+                data.write(block);
+                bufferPool.release(block.data);
+            }
+            entry.crc = crc.getValue();
+        }
+
+        long compressedSize = data.finish();
+
+        if (!sizesKnown) {
+            entry.compressedSize = compressedSize;
+
+            if (!entry.zip64 && compressedSize >= ZIP64_LIMIT) {
+                throw new IOException("Compressed entry '" + entry.name + "' is too large");
+            }
+            patchLocalHeader(out, entry, sizesOffset);
+        }
+    }
+
+    private void patchLocalHeader(Output out, Entry entry, long sizesOffset) throws IOException {
+        ByteBuffer patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!entry.encrypted) {
+            patch.putInt((int) entry.crc).flip();
+            out.patch(entry.offset + 14, patch);
+            patch.clear();
+        }
+
+        if (entry.zip64) {
+            patch.putLong(entry.length).putLong(entry.compressedSize);
+        } else {
+            patch.putInt((int) entry.compressedSize).putInt((int) entry.length);
+        }
+        patch.flip();
+        out.patch(sizesOffset, patch);
+    }
+
+    private void writeCentralDirectory(Output out, List<Entry> entries, List<byte[]> keptRecords) throws IOException {
+        long start = out.position();
+        int count = keptRecords.size() + entries.size();
+
+        for (byte[] record : keptRecords) {
+            out.put(record, 0, record.length);
+        }
+
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(FilesIO.UTF_8);
+            byte[] extra = centralExtra(entry);
+
+            out.putInt(CENTRAL_HEADER_SIGNATURE);
+            out.putShort(VERSION_DEFAULT);
+            out.putShort(versionNeeded(entry));
+            out.putShort(flags(entry));
+            out.putShort(entry.encrypted ? METHOD_AES : entry.method);
+            out.putInt(entry.dosTime);
+            out.putInt(entry.encrypted ? 0 : entry.crc);
+            out.putInt(Math.min(entry.compressedSize, ZIP64_LIMIT));
+            out.putInt(Math.min(entry.length, ZIP64_LIMIT));
+            out.putShort(name.length);
+            out.putShort(extra.length);
+            out.putShort(0);                // comment length
+            out.putShort(0);                // disk number
+            out.putShort(0);                // internal attributes
+            out.putInt(entry.directory ? ATTRIBUTE_DIRECTORY : 0);
+            out.putInt(Math.min(entry.offset, ZIP64_LIMIT));
+            out.put(name, 0, name.length);
+            out.put(extra, 0, extra.length);
+        }
+
+        long end = out.position();
+        long size = end - start;
+
+        if (count >= ZIP64_ENTRIES_LIMIT || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT) {
+            out.putInt(ZIP64_END_SIGNATURE);
+            out.putLong(44);                // size of remaining record
+            out.putShort(VERSION_ZIP64);
+            out.putShort(VERSION_ZIP64);
+            out.putInt(0);                  // disk number
+            out.putInt(0);                  // disk with central directory
+            out.putLong(count);
+            out.putLong(count);
+            out.putLong(size);
+            out.putLong(start);
+
+            out.putInt(ZIP64_LOCATOR_SIGNATURE);
+            out.putInt(0);
+            out.putLong(end);
+            out.putInt(1);                  // total number of disks
+        }
+
+        out.putInt(END_SIGNATURE);
+        out.putShort(0);
+        out.putShort(0);
+        out.putShort(Math.min(count, ZIP64_ENTRIES_LIMIT));
+        out.putShort(Math.min(count, ZIP64_ENTRIES_LIMIT));
+        out.putInt(Math.min(size, ZIP64_LIMIT));
+        out.putInt(Math.min(start, ZIP64_LIMIT));
+        out.putShort(0);                    // comment length
+    }
+
+    private byte[] localExtra(Entry entry) {
+        ByteBuffer extra = ByteBuffer.allocate(31).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (entry.zip64) {
+            extra.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16);
+            extra.putLong(entry.length).putLong(entry.compressedSize);
+        }
+        putAesExtra(extra, entry);
+        return Arrays.copyOf(extra.array(), extra.position());
+    }
+
+    private byte[] centralExtra(Entry entry) {
+        ByteBuffer extra = ByteBuffer.allocate(39).order(ByteOrder.LITTLE_ENDIAN);
+        boolean length = entry.length >= ZIP64_LIMIT;
+        boolean compressedSize = entry.compressedSize >= ZIP64_LIMIT;
+        boolean offset = entry.offset >= ZIP64_LIMIT;
+
+        if (length || compressedSize || offset) {
+            extra.putShort((short) ZIP64_EXTRA_ID).putShort((short) (8 * ((length ? 1 : 0) + (compressedSize ? 1 : 0) + (offset ? 1 : 0))));
+
+            if (length) {
+                extra.putLong(entry.length);
+            }
+            if (compressedSize) {
+                extra.putLong(entry.compressedSize);
+            }
+            if (offset) {
+                extra.putLong(entry.offset);
+            }
+        }
+        putAesExtra(extra, entry);
+        return Arrays.copyOf(extra.array(), extra.position());
+    }
+
+    private static void putAesExtra(ByteBuffer extra, Entry entry) {
+        if (entry.encrypted) {
+            extra.putShort((short) AES_EXTRA_ID).putShort((short) 7);
+            extra.putShort((short) 2);      // AE-2, CRC is not stored
+            extra.put((byte) 'A').put((byte) 'E');
+            extra.put((byte) Zip4jConstants.AES_STRENGTH_256);
+            extra.putShort((short) entry.method);
+        }
+    }
+
+    private static int versionNeeded(Entry entry) {
+        if (entry.encrypted) {
+            return VERSION_AES;
+        }
+        return entry.zip64 || entry.offset >= ZIP64_LIMIT ? VERSION_ZIP64 : VERSION_DEFAULT;
+    }
+
+    private static int flags(Entry entry) {
+        return FLAG_UTF8 | (entry.encrypted ? FLAG_ENCRYPTED : 0);
+    }
+
+    private static int aesOverhead() {
+        return AES_SALT_LENGTH + AES_VERIFIER_LENGTH + AES_MAC_LENGTH;
+    }
+
+    //
+    // COMPRESSION METHODS
+    //
+
+    private int chunkCount(Entry entry) {
+        if (entry.length == 0) {
+            return 0;
+        }
+        if (isInline(entry)) {
+            return 1;
+        }
+        return (int) ((entry.length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Entries larger than one chunk cannot be split without sync flush, they are compressed
+     * as stream by writing thread.
+     *
+     * @param entry
+     * @return true if entry is compressed by writing thread
+     */
+    private boolean isInline(Entry entry) {
+        return entry.length > chunkSize && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Decides compression method of entry in adaptive mode, first chunk of entry decides it
+     * and other chunks of the same entry wait for the decision.
+     *
+     * @param entry
+     * @return METHOD_STORE or METHOD_DEFLATE
+     * @throws IOException
+     */
+    private int resolveMethod(Entry entry) throws IOException {
+        synchronized (entry) {
+            if (entry.method == METHOD_UNDECIDED) {
+                entry.method = isCompressible(entry.file) ? METHOD_DEFLATE : METHOD_STORE;
+            }
+            return entry.method;
+        }
+    }
+
+    /**
+     * Detects incompressible file by its extension or by fast deflate of its first bytes.
+     *
+     * @param file
+     * @return false if deflate would not make the file noticeably smaller
+     * @throws IOException
+     */
+    private boolean isCompressible(File file) throws IOException {
+        String name = file.getName();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+
+        for (String incompressible : INCOMPRESSIBLE_EXTENSIONS) {
+            if (incompressible.equals(extension)) {
+                return false;
+            }
+        }
+
+        int length = (int) Math.min(PROBE_SIZE, file.length());
+        byte[] probe = bufferPool.acquireBytes(length);
+        byte[] output = bufferPool.acquireBytes(length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            readFully(in.getChannel(), probe, length, 0);
+
+            deflater.setInput(probe, 0, length);
+            deflater.finish();
+
+            // output is not kept, only its size is counted until it reaches the threshold
+            long limit = (long) length * PROBE_STORE_RATIO_PERCENT / 100;
+            while (!deflater.finished() && deflater.getBytesWritten() < limit) {
+                deflater.deflate(output, 0, output.length);
+            }
+            return deflater.getBytesWritten() < limit;
+
+        } finally {
+            IOUtils.closeQuietly(in);
+            deflater.end();
+            bufferPool.release(probe);
+            bufferPool.release(output);
+        }
+    }
+
+    /**
+     * Reads chunk of stored entry.
+     */
+    private Block storeChunk(Entry entry, long offset, int length) throws IOException {
+        byte[] input = bufferPool.acquireBytes(length);
+        FileInputStream in = new FileInputStream(entry.file);
+
+        try {
+            readFully(in.getChannel(), input, length, offset);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+        return new Block(input, length, crc.getValue(), length);
+    }
+
+    /**
+     * Compresses one chunk of entry. Chunk is read with preceding 32 KB, which is used as preset
+     * dictionary, so compression ratio stays close to sequential deflate.
+     *
+     * Only chunk which is not last is ended by sync flush of API 19. Below API 19 entries larger
+     * than one chunk are compressed inline (see isInline), so every chunk is the last one there.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Block compressChunk(Entry entry, long offset, int length, boolean last) throws IOException {
+        if (resolveMethod(entry) == METHOD_STORE) {
+            return storeChunk(entry, offset, length);
+        }
+
+        int dictionaryLength = (int) Math.min(offset, DICTIONARY_SIZE);
+        byte[] input = bufferPool.acquireBytes(dictionaryLength + length);
+        FileInputStream in = new FileInputStream(entry.file);
+
+        try {
+            readFully(in.getChannel(), input, dictionaryLength + length, offset - dictionaryLength);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(input, dictionaryLength, length);
+
+        Deflater deflater = acquireDeflater();
+        byte[] output = bufferPool.acquireBytes(length + (length >> 8) + 64);
+        int outputLength = 0;
+
+        try {
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(input, 0, dictionaryLength);
+            }
+            deflater.setInput(input, dictionaryLength, length);
+
+            if (last) {
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    if (outputLength == output.length) {
+                        output = grow(output);
+                    }
+                    outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                }
+            } else {
+                // sync flush ends chunk on byte boundary without final block, so chunks can be joined
+                while (true) {
+                    int space = output.length - outputLength;
+                    int written = deflater.deflate(output, outputLength, space, Deflater.SYNC_FLUSH);
+                    outputLength += written;
+
+                    if (written < space) {
+                        break;
+                    }
+                    output = grow(output);
+                }
+            }
+        } finally {
+            bufferPool.release(input);
+            releaseDeflater(deflater);
+        }
+
+        return new Block(output, outputLength, crc.getValue(), length);
+    }
+
+    /**
+     * Compresses entry as single stream on writing thread.
+     */
+    private void compressInline(Entry entry, EntryOutput data) throws IOException {
+        byte[] input = bufferPool.acquireBytes(bufferPool.getMediumBufferSize());
+        byte[] output = bufferPool.acquireBytes(bufferPool.getMediumBufferSize());
+        Deflater deflater = acquireDeflater();
+        FileInputStream in = new FileInputStream(entry.file);
+        CRC32 crc = new CRC32();
+        boolean store = entry.method == METHOD_STORE;
+
+        try {
+            int read;
+            while ((read = in.read(input)) != -1) {
+                crc.update(input, 0, read);
+
+                if (store) {
+                    data.write(input, 0, read);
+                    continue;
+                }
+                deflater.setInput(input, 0, read);
+
+                while (!deflater.needsInput()) {
+                    data.write(output, 0, deflater.deflate(output, 0, output.length));
+                }
+            }
+
+            deflater.finish();
+            while (!store && !deflater.finished()) {
+                data.write(output, 0, deflater.deflate(output, 0, output.length));
+            }
+            entry.crc = crc.getValue();
+
+        } finally {
+            IOUtils.closeQuietly(in);
+            releaseDeflater(deflater);
+            bufferPool.release(input);
+            bufferPool.release(output);
+        }
+    }
+
+    private Deflater acquireDeflater() {
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        deflater.reset();
+        return deflater;
+    }
+
+    private void releaseDeflater(Deflater deflater) {
+        deflaters.offer(deflater);
+    }
+
+    private byte[] grow(byte[] buffer) {
+        byte[] grown = Arrays.copyOf(buffer, buffer.length * 2);
+        bufferPool.release(buffer);
+        return grown;
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("File was truncated while being compressed");
+            }
+        }
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    /**
+     * Converts time to MS-DOS date and time in local time zone, the same way as zip4j does.
+     *
+     * @param time
+     * @return MS-DOS date and time
+     */
+    static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Entry of archive.
+     */
+    static class Entry {
+        final File file;
+        final String name;
+        final boolean directory;
+        final long length;
+        final long dosTime;
+        int method;
+        boolean encrypted;
+        boolean zip64;
+        long offset;
+        long crc;
+        long compressedSize;
+
+        Entry(File file, String name, boolean directory, long length, long dosTime) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.length = length;
+            this.dosTime = dosTime;
+        }
+    }
+
+    /**
+     * Compressed chunk of entry.
+     */
+    private static class Block {
+        final byte[] data;
+        final int length;
+        final long crc;
+        final int rawLength;
+
+        Block(byte[] data, int length, long crc, int rawLength) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.rawLength = rawLength;
+        }
+    }
+
+    /**
+     * Submits chunks of all entries to workers in archive order, bounded number of chunks is
+     * compressed ahead of writing thread.
+     */
+    private class Pipeline {
+
+        private final ThreadPoolExecutor executor;
+        private final List<Entry> entries;
+        private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        private final int window;
+        private int entryIndex;
+        private int chunkIndex;
+
+        Pipeline(ThreadPoolExecutor executor, List<Entry> entries) {
+            this.executor = executor;
+            this.entries = entries;
+            this.window = parallelism * 4;
+            fill();
+        }
+
+        /**
+         * Returns next compressed chunk in archive order.
+         *
+         * @return Block
+         * @throws IOException
+         */
+        Block next() throws IOException {
+            Future<Block> future = pending.poll();
+            fill();
+
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Compression was interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        void cancel() {
+            for (Future<Block> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+
+        private void fill() {
+            while (pending.size() < window && entryIndex < entries.size()) {
+                final Entry entry = entries.get(entryIndex);
+                int chunks = isInline(entry) ? 0 : chunkCount(entry);
+
+                if (chunkIndex >= chunks) {
+                    entryIndex++;
+                    chunkIndex = 0;
+                    continue;
+                }
+
+                final long offset = (long) chunkIndex * chunkSize;
+                final int length = (int) Math.min(chunkSize, entry.length - offset);
+                final boolean last = chunkIndex == chunks - 1;
+                chunkIndex++;
+
+                pending.add(executor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws IOException {
+                        return compressChunk(entry, offset, length, last);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Writes data of one entry, encrypts them if needed. AES encrypter accepts data in 16 byte
+     * blocks, only the last piece may be shorter, so tail of every write is kept for the next one.
+     */
+    private class EntryOutput {
+
+        private final Output out;
+        private final AESEncrpyter encrypter;
+        private final byte[] carry = new byte[AES_BLOCK_SIZE];
+        private int carried;
+        private long written;
+
+        EntryOutput(Output out, boolean encrypted) throws IOException {
+            this.out = out;
+
+            if (!encrypted) {
+                this.encrypter = null;
+                return;
+            }
+
+            try {
+                this.encrypter = new AESEncrpyter(password, Zip4jConstants.AES_STRENGTH_256);
+            } catch (ZipException e) {
+                throw new IOException(e);
+            }
+
+            byte[] salt = encrypter.getSaltBytes();
+            byte[] verifier = encrypter.getDerivedPasswordVerifier();
+            out.put(salt, 0, salt.length);
+            out.put(verifier, 0, verifier.length);
+            written += salt.length + verifier.length;
+        }
+
+        void write(Block block) throws IOException {
+            write(block.data, 0, block.length);
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (encrypter == null) {
+                out.put(data, offset, length);
+                written += length;
+                return;
+            }
+
+            if (carried > 0) {
+                int count = Math.min(AES_BLOCK_SIZE - carried, length);
+                System.arraycopy(data, offset, carry, carried, count);
+                carried += count;
+                offset += count;
+                length -= count;
+
+                if (carried < AES_BLOCK_SIZE) {
+                    return;
+                }
+                encrypt(carry, 0, AES_BLOCK_SIZE);
+                carried = 0;
+            }
+
+            int aligned = length - length % AES_BLOCK_SIZE;
+            if (aligned > 0) {
+                encrypt(data, offset, aligned);
+            }
+
+            carried = length - aligned;
+            System.arraycopy(data, offset + aligned, carry, 0, carried);
+        }
+
+        /**
+         * Writes remaining data and authentication code.
+         *
+         * @return number of written bytes
+         * @throws IOException
+         */
+        long finish() throws IOException {
+            if (encrypter != null) {
+                if (carried > 0) {
+                    encrypt(carry, 0, carried);
+                    carried = 0;
+                }
+
+                byte[] mac = encrypter.getFinalMac();
+                out.put(mac, 0, AES_MAC_LENGTH);
+                written += AES_MAC_LENGTH;
+            }
+            return written;
+        }
+
+        private void encrypt(byte[] data, int offset, int length) throws IOException {
+            try {
+                encrypter.encryptData(data, offset, length);
+            } catch (ZipException e) {
+                throw new IOException(e);
+            }
+            out.put(data, offset, length);
+            written += length;
+        }
+    }
+
+    /**
+     * Buffered little endian output to file channel, which can patch already written headers.
+     */
+    private static class Output {
+
+        final FileChannel channel;
+        final byte[] buffer;
+        private final ByteBuffer staging;
+        // difference between archive offset and position in channel
+        private final long shift;
+        private long flushed;
+
+        Output(FileChannel channel, long position, long offset, byte[] buffer) {
+            this.channel = channel;
+            this.flushed = offset;
+            this.shift = offset - position;
+            this.buffer = buffer;
+            this.staging = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Returns archive offset of the next written byte.
+         */
+        long position() {
+            return flushed + staging.position();
+        }
+
+        long channelPosition() {
+            return position() - shift;
+        }
+
+        void putShort(int value) throws IOException {
+            ensure(2);
+            staging.putShort((short) value);
+        }
+
+        void putInt(long value) throws IOException {
+            ensure(4);
+            staging.putInt((int) value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            staging.putLong(value);
+        }
+
+        void put(byte[] data, int offset, int length) throws IOException {
+            if (length <= staging.remaining()) {
+                staging.put(data, offset, length);
+                return;
+            }
+
+            flush();
+            if (length <= staging.remaining()) {
+                staging.put(data, offset, length);
+                return;
+            }
+
+            ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+            while (source.hasRemaining()) {
+                flushed += channel.write(source);
+            }
+        }
+
+        /**
+         * Overwrites already written bytes.
+         *
+         * @param position archive offset
+         * @param data
+         * @throws IOException
+         */
+        void patch(long position, ByteBuffer data) throws IOException {
+            flush();
+
+            position -= shift;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        }
+
+        void flush() throws IOException {
+            staging.flip();
+            while (staging.hasRemaining()) {
+                flushed += channel.write(staging);
+            }
+            staging.clear();
+        }
+
+        private void ensure(int length) throws IOException {
+            if (staging.remaining() < length) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Combines CRC32 of consecutive chunks, port of zlib crc32_combine.
+     */
+    private static class CRC32Combiner {
+
+        private static final long POLYNOMIAL = 0xEDB88320L;
+
+        private long value;
+
+        void add(long crc, long length) {
+            value = combine(value, crc, length);
+        }
+
+        long getValue() {
+            return value;
+        }
+
+        private static long combine(long crc1, long crc2, long length2) {
+            if (length2 <= 0) {
+                return crc1;
+            }
+
+            long[] even = new long[32];
+            long[] odd = new long[32];
+
+            // operator for one zero bit in odd
+            odd[0] = POLYNOMIAL;
+            long row = 1;
+            for (int n = 1; n < 32; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+
+            square(even, odd);      // two zero bits
+            square(odd, even);      // four zero bits
+
+            // apply length2 zeros to crc1, first square puts operator for one zero byte to even
+            do {
+                square(even, odd);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(even, crc1);
+                }
+                length2 >>= 1;
+
+                if (length2 == 0) {
+                    break;
+                }
+
+                square(odd, even);
+                if ((length2 & 1) != 0) {
+                    crc1 = times(odd, crc1);
+                }
+                length2 >>= 1;
+            } while (length2 != 0);
+
+            return crc1 ^ crc2;
+        }
+
+        private static long times(long[] matrix, long vector) {
+            long sum = 0;
+            for (int i = 0; vector != 0; i++, vector >>>= 1) {
+                if ((vector & 1) != 0) {
+                    sum ^= matrix[i];
+                }
+            }
+            return sum;
+        }
+
+        private static void square(long[] square, long[] matrix) {
+            for (int n = 0; n < 32; n++) {
+                square[n] = times(matrix, matrix[n]);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FilesManager-zip-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -17,6 +17,7 @@ class SharedPreferencesManager {
     private static final String PREFS_SELECTED_STORAGE = "selected_storage";
     private static final String PREFS_LAST_STORAGES_CONFIGURATION = "last_storages_configuration";
     private static final String PREFS_LAST_USER_ASKED_FOR_CHANGE_STORAGE = "last_user_asked_for_change_storage";
+    private static final String PREFS_PENDING_STORAGE_MOVE = "pending_storage_move";
 
     private static SharedPreferences preferences;
     private static SharedPreferencesManager manager;
@@ -92,4 +93,18 @@ class SharedPreferencesManager {
         return getPreferences().getLong(PREFS_LAST_USER_ASKED_FOR_CHANGE_STORAGE, PREFS_NONE_NUM);
     }
 
+    // PENDING STORAGE MOVE
+
+    void savePendingStorageMove(int storageId)
+    {
+        SharedPreferences.Editor editor = getPreferences().edit();
+        editor.putInt(PREFS_PENDING_STORAGE_MOVE, storageId);
+        editor.apply();
+    }
+
+    int getPendingStorageMove()
+    {
+        return getPreferences().getInt(PREFS_PENDING_STORAGE_MOVE, PREFS_NONE_NUM);
+    }
+
 }
@@ -0,0 +1,62 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import timber.log.Timber;
+
+/**
+ * Receives media mount, unmount and removal broadcasts and forwards them to listener.
+ */
+class StorageEventsReceiver extends BroadcastReceiver {
+
+    /**
+     * Listener of storage media events, called on the main thread.
+     */
+    interface Listener {
+        void onStorageMediaChanged(Intent intent);
+    }
+
+    private final Listener listener;
+
+    private StorageEventsReceiver(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers receiver on application context, so it lives as long as the process.
+     *
+     * @param context
+     * @param listener
+     * @return registered receiver, null in case of failure
+     */
+    static StorageEventsReceiver register(Context context, Listener listener) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addDataScheme("file");
+
+        Context appContext = context.getApplicationContext();
+        StorageEventsReceiver receiver = new StorageEventsReceiver(listener);
+
+        try {
+            (appContext != null ? appContext : context).registerReceiver(receiver, filter);
+            return receiver;
+        } catch (Exception e) {
+            Timber.e(e);
+        }
+        return null;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Timber.d("Storage media event %s", intent.getAction());
+        listener.onStorageMediaChanged(intent);
+    }
+}
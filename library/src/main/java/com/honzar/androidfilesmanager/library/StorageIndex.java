@@ -0,0 +1,664 @@
+package com.honzar.androidfilesmanager.library;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import timber.log.Timber;
+
+/**
+ * Persistent index of storage contents, it maps path relative to storage root to size,
+ * modification time and lazily computed content hash.
+ *
+ * Index is kept in memory as sorted map, so subtree of directory is one range of keys. It is
+ * persisted as snapshot and append-only log of changes, log is merged into new snapshot when it
+ * grows larger than the index. Broken tail of log (process killed while appending) is ignored.
+ *
+ * Index knows only about changes reported to it, files changed by other code make it stale
+ * until it is rebuilt.
+ */
+class StorageIndex {
+
+    static final String INDEX_FILE_NAME = ".afm_index";
+    private static final String LOG_FILE_NAME = INDEX_FILE_NAME + ".log";
+
+    private static final int SNAPSHOT_MAGIC = 0x41464d49;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File root;
+    private final String rootPath;
+    private final File snapshotFile;
+    private final File logFile;
+    private final AtomicFileWriter snapshotWriter = new AtomicFileWriter();
+    private final TreeMap<String, Meta> entries = new TreeMap<>();
+    private DataOutputStream log;
+    private int logRecords;
+
+    /**
+     * Index constructor, index has to be opened or rebuilt before use.
+     *
+     * @param root storage directory
+     */
+    StorageIndex(File root) {
+        this.root = root.getAbsoluteFile();
+        this.rootPath = this.root.getPath();
+        this.snapshotFile = new File(this.root, INDEX_FILE_NAME);
+        this.logFile = new File(this.root, LOG_FILE_NAME);
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    /**
+     * Loads index from its snapshot and log, index is rebuilt if it does not exist or cannot be read.
+     *
+     * @throws IOException if index cannot be rebuilt
+     */
+    synchronized void open() throws IOException {
+        entries.clear();
+
+        try {
+            if (snapshotFile.isFile()) {
+                readSnapshot();
+                replayLog();
+                return;
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Storage index of '%s' cannot be read", root);
+        }
+        rebuild();
+    }
+
+    /**
+     * Scans whole storage and replaces index content.
+     *
+     * @throws IOException if index cannot be written
+     */
+    synchronized void rebuild() throws IOException {
+        entries.clear();
+        scan(root, "");
+        compact();
+    }
+
+    /**
+     * Closes log, index can be used again and log is reopened then.
+     */
+    synchronized void close() {
+        IOUtils.closeQuietly(log);
+        log = null;
+    }
+
+    /**
+     * Deletes persisted index, it is rebuilt on the next open.
+     */
+    synchronized void delete() {
+        close();
+        entries.clear();
+        logFile.delete();
+        snapshotFile.delete();
+    }
+
+    /**
+     * Checks if file is inside of indexed storage.
+     *
+     * @param file
+     * @return true if index can answer queries about the file
+     */
+    boolean covers(File file) {
+        return keyOf(file) != null;
+    }
+
+    //
+    // UPDATE METHODS
+    //
+
+    /**
+     * Reads current state of file or directory (with its content) from filesystem.
+     *
+     * @param file
+     */
+    synchronized void refresh(File file) {
+        String key = keyOf(file);
+        if (key == null) {
+            return;
+        }
+
+        try {
+            if (key.isEmpty()) {
+                if (root.isDirectory()) {
+                    rebuild();
+                } else {
+                    // deleted storage, index is rebuilt on the next open
+                    close();
+                    entries.clear();
+                    logRecords = 0;
+                }
+                return;
+            }
+
+            if (!file.exists()) {
+                if (removeTree(key)) {
+                    appendRemove(key);
+                }
+            } else if (file.isDirectory()) {
+                // content of changed directory is scanned again, hashes of unchanged files are kept
+                SortedMap<String, Meta> previous = new TreeMap<>(descendants(key));
+                removeTree(key);
+                appendRemove(key);
+                putParents(key);
+                scan(file, key);
+                appendPut(key, entries.get(key));
+
+                for (Map.Entry<String, Meta> entry : descendants(key).entrySet()) {
+                    Meta old = previous.get(entry.getKey());
+                    if (old != null && old.hash != null && old.sameContentAs(entry.getValue())) {
+                        entry.getValue().hash = old.hash;
+                    }
+                    appendPut(entry.getKey(), entry.getValue());
+                }
+            } else {
+                putParents(key);
+                Meta meta = Meta.of(file);
+                Meta old = entries.get(key);
+
+                if (old != null && old.hash != null && old.sameContentAs(meta)) {
+                    meta.hash = old.hash;
+                }
+                put(key, meta);
+            }
+
+            flushLog();
+
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    /**
+     * Moves indexed file or directory (with its content) to new path.
+     *
+     * @param from
+     * @param to
+     */
+    synchronized void rename(File from, File to) {
+        String fromKey = keyOf(from);
+        String toKey = keyOf(to);
+
+        if (fromKey == null || toKey == null || fromKey.isEmpty() || toKey.isEmpty() || !entries.containsKey(fromKey)) {
+            refresh(from);
+            refresh(to);
+            return;
+        }
+
+        try {
+            Meta movedRoot = entries.get(fromKey);
+            SortedMap<String, Meta> moved = new TreeMap<>(descendants(fromKey));
+
+            removeTree(fromKey);
+            appendRemove(fromKey);
+            removeTree(toKey);
+            appendRemove(toKey);
+            putParents(toKey);
+            put(toKey, movedRoot);
+
+            for (Map.Entry<String, Meta> entry : moved.entrySet()) {
+                put(toKey + entry.getKey().substring(fromKey.length()), entry.getValue());
+            }
+            flushLog();
+
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    //
+    // QUERY METHODS
+    //
+
+    /**
+     * Checks if file or directory is indexed.
+     *
+     * @param file covered file
+     * @return true if file exists according to index
+     */
+    synchronized boolean contains(File file) {
+        String key = keyOf(file);
+        return key != null && (key.isEmpty() || entries.containsKey(key));
+    }
+
+    /**
+     * Returns indexed files (not directories) modified after given time.
+     *
+     * @param time in milliseconds since epoch
+     * @return modified files
+     */
+    synchronized List<File> listFilesModifiedSince(long time) {
+        List<File> files = new ArrayList<>();
+
+        for (Map.Entry<String, Meta> entry : entries.entrySet()) {
+            Meta meta = entry.getValue();
+            if (!meta.directory && meta.lastModified > time) {
+                files.add(new File(root, entry.getKey()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns content hash of indexed file, hash is computed on first request and kept until
+     * the file changes. Size and modification time of the file are checked, so files changed
+     * by other code are hashed again.
+     *
+     * @param file covered file
+     * @return hex encoded SHA-256 of file content, null if file is not indexed
+     * @throws IOException if file cannot be read
+     */
+    String getHash(File file) throws IOException {
+        String key = keyOf(file);
+        Meta meta;
+
+        synchronized (this) {
+            meta = (key != null) ? entries.get(key) : null;
+
+            if (meta != null && !meta.directory && !meta.sameContentAs(Meta.of(file))) {
+                // file was changed by other code, its hash is computed again
+                refresh(file);
+                meta = entries.get(key);
+            }
+            if (meta == null || meta.directory) {
+                return null;
+            }
+            if (meta.hash != null) {
+                return meta.hash;
+            }
+        }
+
+        // file is hashed without lock, the hash is stored only if the file was not changed meanwhile
+        String hash = computeHash(file);
+
+        synchronized (this) {
+            if (entries.get(key) == meta && meta.sameContentAs(Meta.of(file))) {
+                meta.hash = hash;
+                appendPut(key, meta);
+                flushLog();
+            }
+        }
+        return hash;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes content hash of file.
+     *
+     * @param file
+     * @return hex encoded SHA-256 of file content
+     * @throws IOException if file cannot be read
+     */
+    static String computeHash(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            return computeHash(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Computes content hash of stream, stream is read to EOF but it is not closed.
+     *
+     * @param in
+     * @return hex encoded SHA-256 of stream content
+     * @throws IOException if stream cannot be read
+     */
+    static String computeHash(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquireBytes(pool.getLargeBufferSize());
+
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    /**
+     * Returns key of file, which is its path relative to storage root.
+     *
+     * @param file
+     * @return key, empty for storage root, null if file is outside of storage or it is internal file
+     */
+    private String keyOf(File file) {
+        if (file == null) {
+            return null;
+        }
+
+        String path = file.getAbsolutePath();
+        if (path.equals(rootPath) || path.equals(rootPath + File.separator)) {
+            return "";
+        }
+        if (!path.startsWith(rootPath + File.separator)) {
+            return null;
+        }
+
+        String key = path.substring(rootPath.length() + 1);
+        if (key.endsWith(File.separator)) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return isInternalFile(key) ? null : key;
+    }
+
+    /**
+     * Checks if key belongs to index files, to temporary files of atomic writes or to
+     * deduplication store, whose blobs are files of the storage under other names.
+     */
+    private static boolean isInternalFile(String key) {
+        return (key.startsWith(INDEX_FILE_NAME) && key.indexOf('/') < 0) || AtomicFileWriter.isTempFile(key)
+                || key.equals(DedupStore.STORE_DIR_NAME) || key.startsWith(DedupStore.STORE_DIR_NAME + "/");
+    }
+
+    /**
+     * Returns entries of directory content, the key itself is not included.
+     */
+    private SortedMap<String, Meta> descendants(String key) {
+        // '0' follows '/', so the range contains exactly the keys starting with "key/"
+        return entries.subMap(key + "/", key + "0");
+    }
+
+    private boolean removeTree(String key) {
+        SortedMap<String, Meta> descendants = descendants(key);
+        boolean removed = entries.remove(key) != null || !descendants.isEmpty();
+
+        descendants.clear();
+        return removed;
+    }
+
+    /**
+     * Indexes missing parent directories of key, they may be created without being reported.
+     */
+    private void putParents(String key) throws IOException {
+        int slash = key.lastIndexOf('/');
+
+        if (slash > 0 && !entries.containsKey(key.substring(0, slash))) {
+            String parent = key.substring(0, slash);
+            putParents(parent);
+            put(parent, Meta.of(new File(root, parent)));
+        }
+    }
+
+    private void put(String key, Meta meta) throws IOException {
+        entries.put(key, meta);
+        appendPut(key, meta);
+    }
+
+    /**
+     * Indexes content of directory without logging.
+     */
+    private void scan(File dir, String key) {
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        pending.push(key);
+
+        while (!pending.isEmpty()) {
+            String dirKey = pending.pop();
+            File current = dirKey.isEmpty() ? dir : new File(root, dirKey);
+            String[] names = current.list();
+
+            if (!dirKey.isEmpty()) {
+                entries.put(dirKey, Meta.of(current));
+            }
+            if (names == null) {
+                continue;
+            }
+
+            for (String name : names) {
+                String childKey = dirKey.isEmpty() ? name : dirKey + "/" + name;
+                File child = new File(current, name);
+
+                if (isInternalFile(childKey)) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    pending.push(childKey);
+                } else {
+                    entries.put(childKey, Meta.of(child));
+                }
+            }
+        }
+    }
+
+    //
+    // PERSISTENCE METHODS
+    //
+
+    private void readSnapshot() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown storage index format");
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                entries.put(key, Meta.read(in));
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void replayLog() throws IOException {
+        if (!logFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        boolean complete = false;
+        logRecords = 0;
+
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    complete = true;
+                    break;
+                }
+
+                String key = in.readUTF();
+                if (type == RECORD_PUT) {
+                    entries.put(key, Meta.read(in));
+                } else if (type == RECORD_REMOVE) {
+                    removeTree(key);
+                } else {
+                    break;
+                }
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            // record was not completely written
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        if (!complete) {
+            Timber.w("Storage index log of '%s' is damaged, it is compacted", root);
+            compact();
+        }
+    }
+
+    private void appendPut(String key, Meta meta) throws IOException {
+        DataOutputStream out = openLog();
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(key);
+        meta.write(out);
+        logRecords++;
+    }
+
+    private void appendRemove(String key) throws IOException {
+        DataOutputStream out = openLog();
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(key);
+        logRecords++;
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        if (log == null) {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        }
+        return log;
+    }
+
+    /**
+     * Flushes logged changes, log is merged into snapshot when it has grown too much.
+     */
+    private void flushLog() throws IOException {
+        if (logRecords > Math.max(MIN_COMPACTION_RECORDS, entries.size())) {
+            compact();
+        } else if (log != null) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Writes all entries to new snapshot and starts empty log.
+     */
+    private void compact() throws IOException {
+        close();
+
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Storage '" + root + "' cannot be created");
+        }
+
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        // changes are in snapshot now, log may be deleted even if the process is killed right now
+        if (logFile.exists() && !logFile.delete()) {
+            throw new IOException("Storage index log '" + logFile + "' cannot be deleted");
+        }
+        logRecords = 0;
+    }
+
+    private void writeSnapshot() throws Exception {
+        snapshotWriter.write(snapshotFile, new AtomicFileWriter.Content() {
+            @Override
+            public void writeTo(FileOutputStream out) throws Exception {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(SNAPSHOT_MAGIC);
+                data.writeInt(SNAPSHOT_VERSION);
+                data.writeInt(entries.size());
+
+                for (Map.Entry<String, Meta> entry : entries.entrySet()) {
+                    data.writeUTF(entry.getKey());
+                    entry.getValue().write(data);
+                }
+                data.flush();
+            }
+        });
+    }
+
+    /**
+     * Indexed state of file or directory.
+     */
+    private static class Meta {
+        final boolean directory;
+        final long size;
+        final long lastModified;
+        String hash;
+
+        Meta(boolean directory, long size, long lastModified, String hash) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        static Meta of(File file) {
+            boolean directory = file.isDirectory();
+            return new Meta(directory, directory ? 0 : file.length(), file.lastModified(), null);
+        }
+
+        boolean sameContentAs(Meta other) {
+            return directory == other.directory && size == other.size && lastModified == other.lastModified;
+        }
+
+        static Meta read(DataInputStream in) throws IOException {
+            boolean directory = in.readBoolean();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            String hash = in.readBoolean() ? in.readUTF() : null;
+            return new Meta(directory, size, lastModified, hash);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeBoolean(directory);
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeBoolean(hash != null);
+
+            if (hash != null) {
+                out.writeUTF(hash);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Resumable migration of whole storage directory to another storage.
+ *
+ * Files are copied in parallel, every file goes to temporary sibling first and is renamed to
+ * its final name only when its length matches the source. Copy and its directory entry are
+ * synced to disk, confirmed entries are appended to synced journal in the destination directory
+ * and the source is deleted right after that, so killed migration continues with the remaining
+ * entries on the next run. Temporary files of killed migration are removed when it resumes.
+ *
+ * When both directories are on the same filesystem, whole subtrees are renamed instead and
+ * only entries which cannot be renamed are copied.
+ */
+class StorageMigration {
+
+    static final String JOURNAL_FILE_NAME = ".files_manager_migration";
+    private static final String PART_FILE_SUFFIX = ".fmpart";
+    private static final String JOURNAL_HEADER_PREFIX = "#";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_PARALLELISM = 4;
+
+    private final File from;
+    private final File to;
+    private final int parallelism;
+    private final Set<String> completed = Collections.synchronizedSet(new HashSet<String>());
+    private final int prefixLength;
+    private FileOutputStream journal;
+    private volatile IOException failure;
+
+    /**
+     * Migration constructor.
+     *
+     * @param from        source storage directory
+     * @param to          destination storage directory
+     * @param parallelism number of copying threads, 0 for default
+     */
+    StorageMigration(File from, File to, int parallelism) {
+        this.from = from;
+        this.to = to;
+        this.prefixLength = from.getAbsolutePath().length() + 1;
+        this.parallelism = (parallelism > 0) ? parallelism
+                : Math.max(2, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Runs or resumes the migration.
+     *
+     * @throws IOException in case of failure, already migrated entries are kept
+     */
+    void run() throws IOException {
+        if (!from.isDirectory()) {
+            return;
+        }
+        if (!to.exists() && !to.mkdirs()) {
+            throw new IOException("Destination '" + to + "' directory cannot be created");
+        }
+
+        if (isSameFileSystem(from, to)) {
+            moveByRename(from, to);
+        }
+
+        boolean resumed = new File(to, JOURNAL_FILE_NAME).exists();
+        openJournal();
+
+        if (resumed) {
+            deletePartFiles();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        final Semaphore inFlight = new Semaphore(parallelism * 4);
+
+        // walker skips deduplication store, its blobs are migrated as separate tree
+        List<Iterable<File>> trees = new ArrayList<>();
+        trees.add(FilesWalker.iterable(from, FilesWalker.UNLIMITED_DEPTH, null));
+        trees.add(FilesWalker.iterable(new File(from, DedupStore.STORE_DIR_NAME), FilesWalker.UNLIMITED_DEPTH, null));
+
+        try {
+            for (Iterable<File> tree : trees) {
+                for (final File file : tree) {
+                    if (failure != null) {
+                        break;
+                    }
+
+                    inFlight.acquire();
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                migrateFile(file);
+                            } catch (IOException e) {
+                                failure = e;
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                }
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Storage migration interrupted");
+        } finally {
+            executor.shutdownNow();
+            closeJournal();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        // source contains only directories now, empty ones are kept in destination
+        createDirectories(from, to);
+        FileUtils.deleteDirectory(from);
+        new File(to, JOURNAL_FILE_NAME).delete();
+    }
+
+    /**
+     * Checks if both files are on the same filesystem, so they can be moved by rename.
+     *
+     * @param first
+     * @param second
+     * @return true if files share filesystem or it cannot be detected, false otherwise.
+     */
+    static boolean isSameFileSystem(File first, File second) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return true;    // rename is tried and fails fast with EXDEV across devices
+        }
+
+        try {
+            return Os.stat(first.getAbsolutePath()).st_dev == Os.stat(second.getAbsolutePath()).st_dev;
+        } catch (ErrnoException e) {
+            Timber.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Renames every entry of source directory which does not exist in destination directory,
+     * directories existing on both sides are merged. Entries which cannot be renamed are left for copying.
+     *
+     * @param fromDir
+     * @param toDir
+     */
+    private static void moveByRename(File fromDir, File toDir) {
+        String[] names = fromDir.list();
+
+        if (names == null) {
+            return;
+        }
+
+        for (String name : names) {
+            File src = new File(fromDir, name);
+            File dest = new File(toDir, name);
+
+            if (!dest.exists()) {
+                if (!src.renameTo(dest)) {
+                    Timber.d("Rename of '%s' failed, it will be copied", src);
+                }
+            } else if (src.isDirectory() && dest.isDirectory()) {
+                moveByRename(src, dest);
+            }
+        }
+    }
+
+    /**
+     * Creates subdirectories of source directory in destination directory, migration walks
+     * only files, so empty directories would be lost otherwise.
+     *
+     * @param fromDir
+     * @param toDir
+     * @throws IOException if directory cannot be created
+     */
+    private static void createDirectories(File fromDir, File toDir) throws IOException {
+        File[] children = fromDir.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (!child.isDirectory()) {
+                continue;
+            }
+
+            File dest = new File(toDir, child.getName());
+            if (!dest.isDirectory() && !dest.mkdirs()) {
+                throw new IOException("Directory '" + dest + "' cannot be created");
+            }
+            createDirectories(child, dest);
+        }
+    }
+
+    private void migrateFile(File file) throws IOException {
+        String relativePath = file.getAbsolutePath().substring(prefixLength);
+
+        if (!completed.contains(relativePath)) {
+            File dest = new File(to, relativePath);
+            File part = new File(dest.getPath() + PART_FILE_SUFFIX);
+
+            FileCopier.copyFile(file, part, true, true);
+
+            if (part.length() != file.length()) {
+                part.delete();
+                throw new IOException("Failed to copy full contents from '" + file + "' to '" + dest + "'");
+            }
+            if ((dest.exists() && !dest.delete()) || !part.renameTo(dest)) {
+                throw new IOException("Failed to rename '" + part + "' to '" + dest + "'");
+            }
+
+            // source is deleted only when its copy survives power loss
+            AtomicFileWriter.syncDirectory(dest.getParentFile());
+            appendToJournal(relativePath);
+        }
+
+        if (!file.delete()) {
+            Timber.w("Migrated file '%s' cannot be deleted", file);
+        }
+    }
+
+    /**
+     * Deletes temporary copies left in destination by killed migration.
+     */
+    private void deletePartFiles() {
+        List<Iterable<File>> trees = new ArrayList<>();
+        trees.add(FilesWalker.iterable(to, FilesWalker.UNLIMITED_DEPTH, null));
+        trees.add(FilesWalker.iterable(new File(to, DedupStore.STORE_DIR_NAME), FilesWalker.UNLIMITED_DEPTH, null));
+
+        for (Iterable<File> tree : trees) {
+            for (File file : tree) {
+                if (file.getName().endsWith(PART_FILE_SUFFIX) && !file.delete()) {
+                    Timber.w("Temporary file '%s' cannot be deleted", file);
+                }
+            }
+        }
+    }
+
+    private void openJournal() throws IOException {
+        File journalFile = new File(to, JOURNAL_FILE_NAME);
+        String header = JOURNAL_HEADER_PREFIX + from.getAbsolutePath();
+
+        if (journalFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+
+            try {
+                String line = reader.readLine();
+
+                if (header.equals(line)) {
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isEmpty()) {
+                            completed.add(line);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (completed.isEmpty()) {
+            journal = new FileOutputStream(journalFile, false);
+            journal.write((header + "\n").getBytes(UTF_8));
+        } else {
+            Timber.d("Resuming storage migration, %d entries already migrated", completed.size());
+            journal = new FileOutputStream(journalFile, true);
+        }
+    }
+
+    private synchronized void appendToJournal(String relativePath) throws IOException {
+        // unbuffered write, entry survives process kill as soon as it is written and power loss when it is synced
+        journal.write((relativePath + "\n").getBytes(UTF_8));
+        journal.getFD().sync();
+        completed.add(relativePath);
+    }
+
+    private synchronized void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+            journal = null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time limited cache of storage free space and external storage state, so repeated storage
+ * decisions do not call StatFs and Environment every time.
+ *
+ * Free space is invalidated by own writes and deletes, everything is invalidated by media
+ * mount events. Values resolved before invalidation are never stored after it.
+ */
+class StorageStateCache {
+
+    static final long DEFAULT_TTL_MILLIS = 2000;
+
+    private final ConcurrentHashMap<String, Entry<Long>> freeSpace = new ConcurrentHashMap<>();
+    private volatile Entry<String> externalState;
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Sets time to live of cached values, 0 disables caching.
+     *
+     * @param ttlMillis
+     */
+    void setTtl(long ttlMillis) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        invalidateAll();
+    }
+
+    long getTtl() {
+        return ttlMillis;
+    }
+
+    /**
+     * Returns generation which has to be passed to put methods, values resolved before
+     * invalidation are dropped then.
+     *
+     * @return current generation
+     */
+    int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns cached free space of storage.
+     *
+     * @param storagePath
+     * @return free space in Bytes, null if not cached
+     */
+    Long getFreeSpace(String storagePath) {
+        return count(valueOf(freeSpace.get(storagePath)));
+    }
+
+    void putFreeSpace(String storagePath, long value, int generation) {
+        if (ttlMillis > 0 && generation == this.generation.get()) {
+            freeSpace.put(storagePath, new Entry<>(value));
+        }
+    }
+
+    /**
+     * Returns cached external storage state.
+     *
+     * @return one of Environment.MEDIA_* states, null if not cached
+     */
+    String getExternalState() {
+        return count(valueOf(externalState));
+    }
+
+    void putExternalState(String state, int generation) {
+        if (ttlMillis > 0 && generation == this.generation.get()) {
+            externalState = new Entry<>(state);
+        }
+    }
+
+    /**
+     * Invalidates free space of all storages, called after own writes and deletes.
+     */
+    void invalidateFreeSpace() {
+        generation.incrementAndGet();
+        freeSpace.clear();
+    }
+
+    /**
+     * Invalidates all cached values, called on media mount events.
+     */
+    void invalidateAll() {
+        generation.incrementAndGet();
+        freeSpace.clear();
+        externalState = null;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    private <T> T valueOf(Entry<T> entry) {
+        if (entry == null || SystemClock.elapsedRealtime() - entry.time > ttlMillis) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    private <T> T count(T value) {
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    private static class Entry<T> {
+        final T value;
+        final long time = SystemClock.elapsedRealtime();
+
+        Entry(T value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.honzar.androidfilesmanager.library;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Per-thread cached Xml parsers and transformers. Factories are created once per thread
+ * and every instance is reset before it is handed out again.
+ */
+class XmlFactories {
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<>();
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<>();
+    private static final ThreadLocal<SAXParser> SAX_PARSER = new ThreadLocal<>();
+
+    private XmlFactories() {
+    }
+
+    /**
+     * Returns indenting transformer of the current thread.
+     *
+     * @return Transformer
+     * @throws TransformerConfigurationException
+     */
+    static Transformer getTransformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMER.get();
+
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.reset();
+        }
+
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        return transformer;
+    }
+
+    /**
+     * Returns namespace aware document builder of the current thread.
+     *
+     * @return DocumentBuilder
+     * @throws ParserConfigurationException
+     */
+    static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+
+        if (builder == null) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            builder = factory.newDocumentBuilder();
+            DOCUMENT_BUILDER.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Returns namespace aware SAX parser of the current thread.
+     *
+     * @return SAXParser
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     */
+    static SAXParser getSaxParser() throws ParserConfigurationException, SAXException {
+        SAXParser parser = SAX_PARSER.get();
+
+        if (parser == null) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            parser = factory.newSAXParser();
+            SAX_PARSER.set(parser);
+        } else {
+            parser.reset();
+        }
+        return parser;
+    }
+}
@@ -0,0 +1,619 @@
+package com.honzar.androidfilesmanager.library;
+
+import net.lingala.zip4j.util.Zip4jUtil;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Incremental update of zip archive by files and directories.
+ *
+ * Central directory of existing archive is compared with source files, only new and changed
+ * entries are compressed and appended in place of the old central directory, entries of deleted
+ * files are dropped from it. Files with the same size and different modification time are
+ * compared by CRC, so touched files are not compressed again. Modification time is stored with
+ * 2 seconds resolution, so files modified shortly before the archive was written are compared by
+ * CRC even if their time matches.
+ *
+ * Entries are compressed after the end of archive and moved over the old central directory only
+ * when they are complete, so archive keeps its old content if update fails with an error. It is
+ * not protected against process kill while the written data are moved, the archive has no valid
+ * central directory then. Replaced and dropped entries keep their space in archive until it is
+ * compacted, compaction writes copy of archive without the gaps and renames it over the archive.
+ */
+class ZipArchiveUpdater {
+
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int END_LENGTH = 22;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final long DOS_TIME_RESOLUTION_MILLIS = 2000;
+
+    private static final int ENTRY_UNCHANGED = 0;
+    private static final int ENTRY_TOUCHED = 1;
+    private static final int ENTRY_CHANGED = 2;
+
+    private final File archive;
+    private final ParallelZipWriter writer;
+    private final BufferPool bufferPool = BufferPool.getInstance();
+
+    /**
+     * Updater constructor.
+     *
+     * @param archive     zip file to be updated, it is created if it does not exist
+     * @param level       deflate level 0 - 9 of written entries
+     * @param parallelism number of compressing threads
+     * @param password    optional password, written entries are encrypted by AES-256 if set
+     * @param adaptive    true to store incompressible entries instead of deflating them
+     */
+    ZipArchiveUpdater(File archive, int level, int parallelism, String password, boolean adaptive) {
+        this.archive = archive;
+        this.writer = new ParallelZipWriter(archive, level, parallelism, password, adaptive);
+    }
+
+    /**
+     * Updates archive to contain given files and directories (with their content).
+     *
+     * @param files
+     * @param compact true to reclaim space of replaced and dropped entries
+     * @return true if archive was changed, false if it was up to date
+     * @throws IOException in case of failure, archive keeps its old content then
+     */
+    boolean update(List<File> files, boolean compact) throws IOException {
+        List<ParallelZipWriter.Entry> entries = writer.plan(files);
+
+        if (!archive.exists()) {
+            writer.write(files);
+            return true;
+        }
+
+        long archiveModified = archive.lastModified();
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        File compacted = new File(archive.getParentFile(), archive.getName() + AtomicFileWriter.TEMP_FILE_SUFFIX);
+
+        try {
+            FileChannel channel = file.getChannel();
+            CentralDirectory directory = readCentralDirectory(channel);
+
+            Map<String, Record> records = new HashMap<>();
+            for (Record record : directory.records) {
+                records.put(record.name, record);
+            }
+
+            List<ParallelZipWriter.Entry> changed = new ArrayList<>();
+            List<Record> kept = new ArrayList<>();
+            List<Record> touched = new ArrayList<>();
+
+            for (ParallelZipWriter.Entry entry : entries) {
+                Record record = records.remove(entry.name);
+                int state = (record != null) ? compare(entry, record, archiveModified) : ENTRY_CHANGED;
+
+                if (state == ENTRY_CHANGED) {
+                    changed.add(entry);
+                    continue;
+                }
+                if (state == ENTRY_TOUCHED) {
+                    record.setDosTime(entry.dosTime);
+                    touched.add(record);
+                }
+                record.kept = true;
+                kept.add(record);
+            }
+
+            if (changed.isEmpty() && touched.isEmpty() && !compact && kept.size() == directory.records.size()) {
+                return false;
+            }
+
+            if (!compact) {
+                append(channel, directory, touched, changed);
+                return true;
+            }
+            writeCompacted(compacted, channel, directory, kept, touched, changed);
+
+        } finally {
+            IOUtils.closeQuietly(file);
+        }
+
+        // archive is replaced only by complete compacted copy
+        if (!compacted.renameTo(archive)) {
+            compacted.delete();
+            throw new IOException("Failed to rename '" + compacted + "' to '" + archive + "'");
+        }
+        AtomicFileWriter.syncDirectory(archive.getParentFile());
+        return true;
+    }
+
+    /**
+     * Writes changed entries and new central directory after the end of archive, old central
+     * directory stays valid while they are compressed. Written data are moved down over the old
+     * central directory only when they are complete, old central directory is restored if it fails.
+     * Process killed during the move leaves no valid central directory.
+     */
+    private void append(FileChannel channel, CentralDirectory directory, List<Record> touched,
+                        List<ParallelZipWriter.Entry> changed) throws IOException {
+        long size = channel.size();
+        ByteBuffer tail = littleEndian((int) (size - directory.offset));
+        readFully(channel, tail, directory.offset);
+
+        boolean written = false;
+        byte[] buffer = bufferPool.acquireBytes(bufferPool.getLargeBufferSize());
+
+        try {
+            writer.writeEntries(channel, size, directory.offset, changed, keptRecords(directory));
+            long length = channel.size() - size;
+
+            // only time of touched entries differs, their old central directory records are still valid
+            for (Record record : touched) {
+                patchLocalTime(channel, record);
+            }
+
+            copy(channel, size, channel, directory.offset, length, buffer);
+            channel.truncate(directory.offset + length);
+            channel.force(false);
+            written = true;
+
+        } finally {
+            bufferPool.release(buffer);
+
+            if (!written) {
+                restore(channel, tail, directory.offset, size);
+            }
+        }
+    }
+
+    /**
+     * Writes old central directory back and removes everything written after it.
+     */
+    private static void restore(FileChannel channel, ByteBuffer tail, long offset, long size) {
+        try {
+            tail.rewind();
+            writeFully(channel, tail, offset);
+            channel.truncate(size);
+            channel.force(false);
+        } catch (IOException e) {
+            Timber.e(e, "Central directory of archive cannot be restored");
+        }
+    }
+
+    /**
+     * Returns raw records of kept entries in order of old central directory.
+     */
+    private static List<byte[]> keptRecords(CentralDirectory directory) {
+        List<byte[]> keptRecords = new ArrayList<>(directory.records.size());
+
+        for (Record record : directory.records) {
+            if (record.kept) {
+                keptRecords.add(record.raw);
+            }
+        }
+        return keptRecords;
+    }
+
+    //
+    // COMPARISON METHODS
+    //
+
+    /**
+     * Compares planned entry with its record in archive.
+     *
+     * @param archiveModified modification time of archive before update
+     * @return ENTRY_UNCHANGED, ENTRY_TOUCHED if only modification time differs or ENTRY_CHANGED
+     */
+    private int compare(ParallelZipWriter.Entry entry, Record record, long archiveModified) throws IOException {
+        if (entry.directory) {
+            return ENTRY_UNCHANGED;
+        }
+        if (entry.encrypted != record.encrypted() || entry.length != record.size) {
+            return ENTRY_CHANGED;
+        }
+
+        // file rewritten within 2 seconds after it was archived keeps the same DOS time
+        boolean sameTime = entry.dosTime == record.dosTime;
+        if (sameTime && entry.file.lastModified() < archiveModified - DOS_TIME_RESOLUTION_MILLIS) {
+            return ENTRY_UNCHANGED;
+        }
+
+        // CRC of AES entries is not stored
+        if (record.encrypted() || crcOf(entry.file) != record.crc) {
+            return ENTRY_CHANGED;
+        }
+        return sameTime ? ENTRY_UNCHANGED : ENTRY_TOUCHED;
+    }
+
+    private long crcOf(File file) throws IOException {
+        byte[] buffer = bufferPool.acquireBytes(bufferPool.getLargeBufferSize());
+        FileInputStream in = new FileInputStream(file);
+        CRC32 crc = new CRC32();
+
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+            return crc.getValue();
+        } finally {
+            IOUtils.closeQuietly(in);
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes modification time of entry to its local header, see Record.setDosTime.
+     */
+    private static void patchLocalTime(FileChannel channel, Record record) throws IOException {
+        ByteBuffer time = littleEndian(4).putInt((int) record.dosTime);
+        time.flip();
+        writeFully(channel, time, record.offset + 10);
+    }
+
+    //
+    // COMPACTION METHODS
+    //
+
+    /**
+     * Writes compacted copy of archive, kept entries are copied without gaps of replaced and
+     * dropped entries and followed by changed entries. Archive itself is not changed.
+     */
+    private void writeCompacted(File compacted, FileChannel channel, CentralDirectory directory, List<Record> kept,
+                                List<Record> touched, List<ParallelZipWriter.Entry> changed) throws IOException {
+        FileOutputStream stream = new FileOutputStream(compacted);
+        boolean written = false;
+
+        try {
+            FileChannel target = stream.getChannel();
+            long position = copyKept(channel, target, directory, kept);
+
+            for (Record record : touched) {
+                patchLocalTime(target, record);
+            }
+
+            writer.writeEntries(target, position, position, changed, keptRecords(directory));
+            target.force(false);
+            stream.close();
+            stream = null;
+            written = true;
+
+        } finally {
+            IOUtils.closeQuietly(stream);
+
+            if (!written) {
+                compacted.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies data preceding the first entry and kept entries in their order, offsets of kept
+     * records are updated to their new positions.
+     *
+     * @return position after the last kept entry
+     */
+    private long copyKept(FileChannel channel, FileChannel target, CentralDirectory directory, List<Record> kept)
+            throws IOException {
+        long position = directory.offset;
+        for (Record record : directory.records) {
+            position = Math.min(position, record.offset);
+        }
+
+        List<Record> sorted = new ArrayList<>(kept);
+        Collections.sort(sorted, new Comparator<Record>() {
+            @Override
+            public int compare(Record left, Record right) {
+                return (left.offset < right.offset) ? -1 : ((left.offset == right.offset) ? 0 : 1);
+            }
+        });
+
+        byte[] buffer = bufferPool.acquireBytes(bufferPool.getLargeBufferSize());
+
+        try {
+            copy(channel, 0, target, 0, position, buffer);
+
+            for (Record record : sorted) {
+                long length = entryLength(channel, record);
+
+                copy(channel, record.offset, target, position, length, buffer);
+                record.setOffset(position);
+                position += length;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return position;
+    }
+
+    /**
+     * Returns length of entry including its local header and data descriptor.
+     */
+    private static long entryLength(FileChannel channel, Record record) throws IOException {
+        ByteBuffer header = littleEndian(LOCAL_HEADER_LENGTH);
+        readFully(channel, header, record.offset);
+
+        if (header.getInt(0) != ParallelZipWriter.LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Local header of entry '" + record.name + "' not found");
+        }
+
+        long length = LOCAL_HEADER_LENGTH + unsigned(header.getShort(26)) + unsigned(header.getShort(28)) + record.compressedSize;
+
+        if ((header.getShort(6) & FLAG_DATA_DESCRIPTOR) != 0) {
+            ByteBuffer signature = littleEndian(4);
+            readFully(channel, signature, record.offset + length);
+
+            length += record.zip64 ? 20 : 12;
+            if (signature.getInt(0) == DATA_DESCRIPTOR_SIGNATURE) {
+                length += 4;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Copies bytes between channels or to lower position of the same channel.
+     */
+    private static void copy(FileChannel source, long from, FileChannel target, long to, long length, byte[] buffer)
+            throws IOException {
+        long copied = 0;
+
+        while (copied < length) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            readFully(source, chunk, from + copied);
+            chunk.flip();
+            writeFully(target, chunk, to + copied);
+            copied += chunk.limit();
+        }
+    }
+
+    //
+    // CENTRAL DIRECTORY METHODS
+    //
+
+    private static CentralDirectory readCentralDirectory(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, END_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = littleEndian(tailLength);
+        readFully(channel, tail, size - tailLength);
+
+        int end = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == ParallelZipWriter.END_SIGNATURE && i + END_LENGTH + unsigned(tail.getShort(i + 20)) == tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("End of central directory not found");
+        }
+
+        long count = unsigned(tail.getShort(end + 10));
+        long length = unsigned(tail.getInt(end + 12));
+        long offset = unsigned(tail.getInt(end + 16));
+
+        if (count == ParallelZipWriter.ZIP64_ENTRIES_LIMIT || length == ParallelZipWriter.ZIP64_LIMIT
+                || offset == ParallelZipWriter.ZIP64_LIMIT) {
+            long locator = size - tailLength + end - ZIP64_LOCATOR_LENGTH;
+            ByteBuffer buffer = littleEndian(ZIP64_LOCATOR_LENGTH);
+
+            if (locator >= 0) {
+                readFully(channel, buffer, locator);
+            }
+            if (locator >= 0 && buffer.getInt(0) == ParallelZipWriter.ZIP64_LOCATOR_SIGNATURE) {
+                long zip64End = buffer.getLong(8);
+                buffer = littleEndian(56);
+                readFully(channel, buffer, zip64End);
+
+                if (buffer.getInt(0) != ParallelZipWriter.ZIP64_END_SIGNATURE) {
+                    throw new IOException("Zip64 end of central directory not found");
+                }
+                count = buffer.getLong(32);
+                length = buffer.getLong(40);
+                offset = buffer.getLong(48);
+            }
+        }
+
+        if (length > Integer.MAX_VALUE || offset + length > size) {
+            throw new IOException("Invalid central directory");
+        }
+
+        ByteBuffer data = littleEndian((int) length);
+        readFully(channel, data, offset);
+
+        CentralDirectory directory = new CentralDirectory(offset);
+        int position = 0;
+
+        for (long i = 0; i < count; i++) {
+            Record record = Record.parse(data, position);
+            directory.records.add(record);
+            position += record.raw.length;
+        }
+        return directory;
+    }
+
+    //
+    // INNER METHODS
+    //
+
+    private static ByteBuffer littleEndian(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+
+    private static int unsigned(short value) {
+        return value & 0xFFFF;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static class CentralDirectory {
+        final long offset;
+        final List<Record> records = new ArrayList<>();
+
+        CentralDirectory(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Central directory record, raw bytes are kept and written back to updated archive.
+     */
+    private static class Record {
+        final byte[] raw;
+        final String name;
+        final int flags;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final boolean zip64;
+        long dosTime;
+        long offset;
+        boolean kept;
+        // position of local header offset in raw bytes, 8 bytes long in zip64 extra field
+        private int offsetField = 42;
+        private boolean offsetZip64;
+
+        private Record(byte[] raw, String name, int flags, long dosTime, long crc, long size, long compressedSize,
+                       long offset, boolean zip64) {
+            this.raw = raw;
+            this.name = name;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+            this.zip64 = zip64;
+        }
+
+        boolean encrypted() {
+            return (flags & ParallelZipWriter.FLAG_ENCRYPTED) != 0;
+        }
+
+        /**
+         * Updates modification time in raw record, local header is patched by patchLocalTime.
+         */
+        void setDosTime(long dosTime) {
+            ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).putInt(12, (int) dosTime);
+            this.dosTime = dosTime;
+        }
+
+        void setOffset(long offset) {
+            ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (offsetZip64) {
+                buffer.putLong(offsetField, offset);
+            } else {
+                buffer.putInt(offsetField, (int) offset);
+            }
+            this.offset = offset;
+        }
+
+        static Record parse(ByteBuffer data, int position) throws IOException {
+            if (position + CENTRAL_HEADER_LENGTH > data.limit()
+                    || data.getInt(position) != ParallelZipWriter.CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory record");
+            }
+
+            int flags = unsigned(data.getShort(position + 8));
+            int nameLength = unsigned(data.getShort(position + 28));
+            int extraLength = unsigned(data.getShort(position + 30));
+            int commentLength = unsigned(data.getShort(position + 32));
+            int length = CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+
+            if (position + length > data.limit()) {
+                throw new IOException("Invalid central directory record");
+            }
+
+            byte[] raw = new byte[length];
+            data.position(position);
+            data.get(raw);
+
+            byte[] nameBytes = Arrays.copyOfRange(raw, CENTRAL_HEADER_LENGTH, CENTRAL_HEADER_LENGTH + nameLength);
+            String name = Zip4jUtil.decodeFileName(nameBytes, (flags & ParallelZipWriter.FLAG_UTF8) != 0);
+
+            Record record = new Record(raw, name, flags, unsigned(data.getInt(position + 12)),
+                    unsigned(data.getInt(position + 16)), unsigned(data.getInt(position + 24)),
+                    unsigned(data.getInt(position + 20)), unsigned(data.getInt(position + 42)), false);
+
+            return record.withZip64Extra(CENTRAL_HEADER_LENGTH + nameLength, extraLength);
+        }
+
+        /**
+         * Reads values exceeding 32 bits from zip64 extra field.
+         */
+        private Record withZip64Extra(int extraStart, int extraLength) {
+            ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+            int position = extraStart;
+            int end = extraStart + extraLength;
+
+            while (position + 4 <= end) {
+                int id = unsigned(buffer.getShort(position));
+                int length = unsigned(buffer.getShort(position + 2));
+
+                if (id != ParallelZipWriter.ZIP64_EXTRA_ID) {
+                    position += 4 + length;
+                    continue;
+                }
+
+                int field = position + 4;
+                long size = this.size;
+                long compressedSize = this.compressedSize;
+                long offset = this.offset;
+                boolean sizes = false;
+
+                if (size == ParallelZipWriter.ZIP64_LIMIT && field + 8 <= end) {
+                    size = buffer.getLong(field);
+                    field += 8;
+                    sizes = true;
+                }
+                if (compressedSize == ParallelZipWriter.ZIP64_LIMIT && field + 8 <= end) {
+                    compressedSize = buffer.getLong(field);
+                    field += 8;
+                    sizes = true;
+                }
+
+                Record record = new Record(raw, name, flags, dosTime, crc, size, compressedSize, offset, sizes);
+                if (offset == ParallelZipWriter.ZIP64_LIMIT && field + 8 <= end) {
+                    record.offset = buffer.getLong(field);
+                    record.offsetField = field;
+                    record.offsetZip64 = true;
+                }
+                return record;
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.honzar.androidfilesmanager.library;
+
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.ZipInputStream;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Zip archive extractor with entry filter, progress reporting and cancellation.
+ *
+ * Entries are independent, so they are extracted by several workers, every worker reads the
+ * archive through its own zip4j ZipFile. Data are copied through pooled buffers and every
+ * entry is checked to stay inside of the output directory.
+ */
+class ZipExtractor {
+
+    private static final long PROGRESS_INTERVAL_NANOS = 100 * 1000 * 1000;
+
+    private final File archive;
+    private final String password;
+    private final int parallelism;
+
+    /**
+     * Extractor constructor.
+     *
+     * @param archive
+     * @param password    optional password of encrypted archive
+     * @param parallelism number of extracting threads
+     */
+    ZipExtractor(File archive, String password, int parallelism) {
+        this.archive = archive;
+        this.password = password;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Extracts accepted entries to output directory.
+     *
+     * @param outputDir
+     * @param filter    optional entry filter
+     * @param listener  optional progress listener, called from extracting threads
+     * @return true if all accepted entries were extracted, false if listener cancelled extraction
+     * @throws IOException in case of failure, already extracted files are kept
+     */
+    boolean extract(File outputDir, FilesManager.ZipEntryFilter filter, FilesManager.ZipProgressListener listener) throws IOException {
+        ZipFile zip = open();
+        List<?> headers;
+
+        try {
+            headers = zip.getFileHeaders();
+        } catch (ZipException e) {
+            throw new IOException(e);
+        }
+
+        File output = outputDir.getCanonicalFile();
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Output directory '" + output + "' cannot be created");
+        }
+
+        List<Task> tasks = new ArrayList<>();
+        long totalBytes = 0;
+
+        for (int i = 0; i < headers.size(); i++) {
+            FileHeader header = (FileHeader) headers.get(i);
+
+            if (filter != null && !filter.accept(header.getFileName())) {
+                continue;
+            }
+
+            File target = resolveTarget(output, header.getFileName());
+
+            if (header.isDirectory()) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Directory '" + target + "' cannot be created");
+                }
+            } else {
+                tasks.add(new Task(i, target, header.getLastModFileTime()));
+                totalBytes += header.getUncompressedSize();
+            }
+        }
+
+        Progress progress = new Progress(listener, totalBytes);
+        int workers = Math.min(parallelism, tasks.size());
+
+        if (workers <= 1) {
+            try {
+                new Worker(zip, tasks, progress).run();
+            } catch (WorkerException e) {
+                throw toIOException(e.getCause());
+            }
+        } else {
+            runWorkers(zip, tasks, progress, workers);
+        }
+
+        progress.report(true);
+        return !progress.cancelled;
+    }
+
+    private void runWorkers(ZipFile zip, List<Task> tasks, Progress progress, int workers) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers - 1, new WorkerThreadFactory());
+        List<Future<?>> futures = new ArrayList<>();
+        IOException failure = null;
+
+        try {
+            // calling thread works too, other workers read the archive through their own ZipFile
+            for (int i = 1; i < workers; i++) {
+                futures.add(executor.submit(new Worker(null, tasks, progress)));
+            }
+
+            try {
+                new Worker(zip, tasks, progress).run();
+            } catch (WorkerException e) {
+                failure = toIOException(e.getCause());
+            }
+
+            // failed worker cancels the others, they are awaited so no file is written after return
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = toIOException(cause instanceof WorkerException ? cause.getCause() : cause);
+                    }
+                }
+            }
+
+        } catch (InterruptedException e) {
+            progress.cancelled = true;
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction was interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException toIOException(Throwable e) {
+        return (e instanceof IOException) ? (IOException) e : new IOException(e);
+    }
+
+    private ZipFile open() throws IOException {
+        try {
+            ZipFile zip = new ZipFile(archive);
+
+            if (zip.isEncrypted() && password != null) {
+                zip.setPassword(password);
+            }
+            return zip;
+
+        } catch (ZipException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Resolves target file of entry, entries pointing outside of output directory are rejected.
+     *
+     * @param output canonical output directory
+     * @param name   entry name
+     * @return target File object
+     * @throws IOException if entry points outside of output directory
+     */
+    private static File resolveTarget(File output, String name) throws IOException {
+        File target = new File(output, name);
+        String path = target.getCanonicalPath();
+
+        if (!path.startsWith(output.getPath() + File.separator) && !path.equals(output.getPath())) {
+            throw new IOException("Entry '" + name + "' is outside of target directory");
+        }
+        return target;
+    }
+
+    /**
+     * Extracts tasks until all of them are taken, extraction fails or is cancelled.
+     */
+    private class Worker implements Runnable {
+
+        private final List<Task> tasks;
+        private final Progress progress;
+        private ZipFile zip;
+
+        Worker(ZipFile zip, List<Task> tasks, Progress progress) {
+            this.zip = zip;
+            this.tasks = tasks;
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (zip == null) {
+                    zip = open();
+                }
+
+                Task task;
+                while (!progress.cancelled && (task = progress.nextTask(tasks)) != null) {
+                    extractEntry(task);
+                }
+
+            } catch (IOException | ZipException e) {
+                progress.cancelled = true;
+                throw new WorkerException(e);
+            }
+        }
+
+        private void extractEntry(Task task) throws IOException, ZipException {
+            FileHeader header = (FileHeader) zip.getFileHeaders().get(task.index);
+            File parent = task.target.getParentFile();
+
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Directory '" + parent + "' cannot be created");
+            }
+
+            BufferPool pool = BufferPool.getInstance();
+            byte[] buffer = pool.acquireBytes(pool.getLargeBufferSize());
+            ZipInputStream in = null;
+            FileOutputStream out = null;
+            boolean done = false;
+
+            try {
+                in = zip.getInputStream(header);
+                DedupStore.unlink(task.target);
+                out = new FileOutputStream(task.target);
+
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+
+                    if (!progress.add(read)) {
+                        return;
+                    }
+                }
+
+                out.close();
+                out = null;
+                // closing stream verifies CRC or AES authentication code
+                in.close();
+                in = null;
+
+                task.target.setLastModified(Zip4jUtil.dosToJavaTme(task.dosTime));
+                done = true;
+
+            } finally {
+                pool.release(buffer);
+                IOUtils.closeQuietly(out);
+
+                if (in != null) {
+                    try {
+                        in.close(true);
+                    } catch (IOException e) {
+                        // entry is already failed or cancelled
+                    }
+                }
+                if (!done) {
+                    task.target.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Shared progress of all workers.
+     */
+    private static class Progress {
+
+        private final FilesManager.ZipProgressListener listener;
+        private final long totalBytes;
+        private final long start = System.nanoTime();
+        private final AtomicLong extractedBytes = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong(start);
+        private final AtomicInteger nextTask = new AtomicInteger();
+        volatile boolean cancelled;
+
+        Progress(FilesManager.ZipProgressListener listener, long totalBytes) {
+            this.listener = listener;
+            this.totalBytes = totalBytes;
+        }
+
+        Task nextTask(List<Task> tasks) {
+            int index = nextTask.getAndIncrement();
+            return (index < tasks.size()) ? tasks.get(index) : null;
+        }
+
+        /**
+         * Adds extracted bytes.
+         *
+         * @param bytes
+         * @return false if extraction was cancelled
+         */
+        boolean add(long bytes) {
+            extractedBytes.addAndGet(bytes);
+            report(false);
+            return !cancelled;
+        }
+
+        /**
+         * Reports progress to listener, at most once per interval unless forced.
+         *
+         * @param force
+         */
+        void report(boolean force) {
+            if (listener == null) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long last = lastReport.get();
+
+            if (!force && (now - last < PROGRESS_INTERVAL_NANOS || !lastReport.compareAndSet(last, now))) {
+                return;
+            }
+
+            synchronized (this) {
+                long extracted = extractedBytes.get();
+                long elapsed = Math.max(1, now - start);
+                long bytesPerSecond = (long) (extracted * 1e9 / elapsed);
+
+                if (!listener.onProgress(extracted, totalBytes, bytesPerSecond)) {
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        final int index;
+        final File target;
+        final int dosTime;
+
+        Task(int index, File target, int dosTime) {
+            this.index = index;
+            this.target = target;
+            this.dosTime = dosTime;
+        }
+    }
+
+    /**
+     * Carries checked exception out of worker.
+     */
+    private static class WorkerException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WorkerException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FilesManager-unzip-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.assertArchive;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.assertEncryptedArchive;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.expectedEntries;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.randomBytes;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.text;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.write;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelZipWriterTest {
+
+    private static final String PASSWORD = "secret";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File source;
+    private File archive;
+
+    @Before
+    public void setUp() throws Exception {
+        // chunks ended by sync flush
+        ZipTestUtils.setSdkInt(Build.VERSION_CODES.KITKAT);
+
+        source = temp.newFolder("source");
+        archive = new File(temp.getRoot(), "archive.zip");
+
+        write(new File(source, "small.txt"), "small file");
+        write(new File(source, "empty.txt"), new byte[0]);
+        write(new File(source, "multi-chunk.txt"), text(1024 * 1024 + 123, 1));
+        write(new File(source, "random.bin"), randomBytes(300 * 1024, 2));
+        write(new File(source, "žluťoučký kůň/úpěl.txt"), "ďábelské ódy");
+        new File(source, "empty dir").mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ZipTestUtils.setSdkInt(0);
+    }
+
+    @Test
+    public void writesReadableArchive() throws Exception {
+        writeArchive(ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, null, false);
+        assertArchive(expectedEntries(source.listFiles()), archive, temp.getRoot());
+    }
+
+    @Test
+    public void writesStoredEntriesAtLevelZero() throws Exception {
+        writeArchive(0, null, false);
+        assertArchive(expectedEntries(source.listFiles()), archive, temp.getRoot());
+    }
+
+    @Test
+    public void writesAtMiddleLevel() throws Exception {
+        writeArchive(5, null, false);
+        assertArchive(expectedEntries(source.listFiles()), archive, temp.getRoot());
+    }
+
+    @Test
+    public void writesAdaptiveArchiveSmallerThanContent() throws Exception {
+        writeArchive(ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, null, true);
+
+        assertArchive(expectedEntries(source.listFiles()), archive, temp.getRoot());
+        assertTrue(archive.length() < 1024 * 1024);
+    }
+
+    @Test
+    public void writesLargeEntriesInlineBeforeKitKat() throws Exception {
+        ZipTestUtils.setSdkInt(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1);
+
+        writeArchive(ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, null, true);
+        assertArchive(expectedEntries(source.listFiles()), archive, temp.getRoot());
+    }
+
+    @Test
+    public void writesEncryptedArchive() throws Exception {
+        writeArchive(ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, PASSWORD, false);
+        assertEncryptedArchive(expectedEntries(source.listFiles()), archive, PASSWORD, temp.getRoot());
+    }
+
+    @Test
+    public void writesEncryptedAdaptiveArchive() throws Exception {
+        writeArchive(ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, PASSWORD, true);
+        assertEncryptedArchive(expectedEntries(source.listFiles()), archive, PASSWORD, temp.getRoot());
+    }
+
+    @Test
+    public void writesSingleFilesAndLaterDuplicateWins() throws Exception {
+        File first = write(new File(temp.newFolder("first"), "same.txt"), "first");
+        File second = write(new File(temp.newFolder("second"), "same.txt"), "second");
+
+        new ParallelZipWriter(archive, 6, 4, null, false).write(Arrays.asList(first, second));
+
+        TreeMap<String, byte[]> expected = expectedEntries(second);
+        assertArchive(expected, archive, temp.getRoot());
+    }
+
+    private void writeArchive(int level, String password, boolean adaptive) throws Exception {
+        List<File> files = new ArrayList<>(Arrays.asList(source.listFiles()));
+        new ParallelZipWriter(archive, level, 4, password, adaptive).write(files);
+    }
+}
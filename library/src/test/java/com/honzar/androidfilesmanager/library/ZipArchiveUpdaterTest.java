@@ -0,0 +1,235 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.assertAppendedArchive;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.assertArchive;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.assertEncryptedArchive;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.expectedEntries;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.randomBytes;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.text;
+import static com.honzar.androidfilesmanager.library.ZipTestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipArchiveUpdaterTest {
+
+    private static final String PASSWORD = "secret";
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File source;
+    private File archive;
+    private List<File> files;
+    private long past;
+
+    @Before
+    public void setUp() throws Exception {
+        ZipTestUtils.setSdkInt(Build.VERSION_CODES.KITKAT);
+
+        source = temp.newFolder("source");
+        archive = new File(temp.getRoot(), "archive.zip");
+        files = Collections.singletonList(source);
+
+        write(new File(source, "small.txt"), "small file");
+        write(new File(source, "empty.txt"), new byte[0]);
+        write(new File(source, "multi-chunk.txt"), text(1024 * 1024 + 123, 1));
+        write(new File(source, "random.bin"), randomBytes(300 * 1024, 2));
+        write(new File(source, "žluťoučký kůň/úpěl.txt"), "ďábelské ódy");
+        new File(source, "empty dir").mkdirs();
+
+        // sources older than archive are compared by size and time only
+        past = System.currentTimeMillis() - HOUR_MILLIS;
+        setLastModified(source, past);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ZipTestUtils.setSdkInt(0);
+    }
+
+    @Test
+    public void createsMissingArchive() throws Exception {
+        assertTrue(updater(null).update(files, false));
+        assertArchive(expectedEntries(source), archive, temp.getRoot());
+    }
+
+    @Test
+    public void returnsFalseWhenUpToDate() throws Exception {
+        updater(null).update(files, false);
+        byte[] before = FileUtils.readFileToByteArray(archive);
+
+        assertFalse(updater(null).update(files, false));
+        assertArrayEquals(before, FileUtils.readFileToByteArray(archive));
+    }
+
+    @Test
+    public void appendsAddedChangedAndRemovedEntries() throws Exception {
+        updater(null).update(files, false);
+
+        write(new File(source, "small.txt"), "changed small file");
+        write(new File(source, "multi-chunk.txt"), text(700 * 1024, 3));
+        write(new File(source, "added/nested.txt"), "added file");
+        new File(source, "random.bin").delete();
+
+        assertTrue(updater(null).update(files, false));
+        assertAppendedArchive(expectedEntries(source), archive, temp.getRoot());
+    }
+
+    @Test
+    public void detectsRecentRewriteOfTheSameLength() throws Exception {
+        File small = new File(source, "small.txt");
+        small.setLastModified(System.currentTimeMillis());
+        updater(null).update(files, false);
+
+        // rewritten within DOS time resolution, size and time stay the same
+        write(small, "SMALL FILE");
+        small.setLastModified(System.currentTimeMillis());
+
+        assertTrue(updater(null).update(files, false));
+        assertAppendedArchive(expectedEntries(source), archive, temp.getRoot());
+    }
+
+    @Test
+    public void updatesTimeOfTouchedEntries() throws Exception {
+        updater(null).update(files, false);
+        long archiveLength = archive.length();
+
+        File small = new File(source, "small.txt");
+        long touched = past + HOUR_MILLIS / 2;
+        small.setLastModified(touched);
+
+        assertTrue(updater(null).update(files, false));
+        assertArchive(expectedEntries(source), archive, temp.getRoot());
+
+        // only central directory is written again
+        assertEquals(archiveLength, archive.length());
+        assertEquals(ParallelZipWriter.toDosTime(touched), toDosTime(entryTime("source/small.txt")));
+    }
+
+    @Test
+    public void compactsArchive() throws Exception {
+        updater(null).update(files, false);
+
+        write(new File(source, "multi-chunk.txt"), text(1024 * 1024 + 123, 4));
+        updater(null).update(files, false);
+        long appendedLength = archive.length();
+
+        new File(source, "random.bin").delete();
+        write(new File(source, "small.txt"), "changed small file");
+
+        assertTrue(updater(null).update(files, true));
+        assertArchive(expectedEntries(source), archive, temp.getRoot());
+        assertTrue(archive.length() < appendedLength);
+        assertFalse(new File(temp.getRoot(), archive.getName() + AtomicFileWriter.TEMP_FILE_SUFFIX).exists());
+    }
+
+    @Test
+    public void compactsUpToDateArchive() throws Exception {
+        updater(null).update(files, false);
+        write(new File(source, "multi-chunk.txt"), text(1024 * 1024 + 123, 4));
+        updater(null).update(files, false);
+        long appendedLength = archive.length();
+
+        assertTrue(updater(null).update(files, true));
+        assertArchive(expectedEntries(source), archive, temp.getRoot());
+        assertTrue(archive.length() < appendedLength);
+    }
+
+    @Test
+    public void updatesEncryptedArchive() throws Exception {
+        updater(PASSWORD).update(files, false);
+
+        write(new File(source, "small.txt"), "changed small file");
+        write(new File(source, "added.txt"), "added file");
+        assertTrue(updater(PASSWORD).update(files, false));
+        assertEncryptedArchive(expectedEntries(source), archive, PASSWORD, temp.getRoot());
+
+        new File(source, "added.txt").delete();
+        assertTrue(updater(PASSWORD).update(files, true));
+        assertEncryptedArchive(expectedEntries(source), archive, PASSWORD, temp.getRoot());
+    }
+
+    @Test
+    public void keepsArchiveWhenAppendFails() throws Exception {
+        assertKeptAfterFailure(false);
+    }
+
+    @Test
+    public void keepsArchiveWhenCompactionFails() throws Exception {
+        assertKeptAfterFailure(true);
+        assertFalse(new File(temp.getRoot(), archive.getName() + AtomicFileWriter.TEMP_FILE_SUFFIX).exists());
+    }
+
+    private void assertKeptAfterFailure(boolean compact) throws Exception {
+        File truncated = write(new File(temp.getRoot(), "truncated.bin"), randomBytes(200 * 1024, 5));
+        updater(null).update(Collections.singletonList(source), false);
+        byte[] before = FileUtils.readFileToByteArray(archive);
+
+        // file shrinks after its size is read
+        File shrinking = new File(truncated.getPath()) {
+            @Override
+            public long length() {
+                return super.length() + 1024;
+            }
+        };
+
+        try {
+            updater(null).update(Arrays.asList(source, shrinking), compact);
+            fail("Update of truncated file succeeded");
+        } catch (IOException expected) {
+            // archive keeps its old content
+        }
+        assertArrayEquals(before, FileUtils.readFileToByteArray(archive));
+        assertArchive(expectedEntries(source), archive, temp.getRoot());
+    }
+
+    private ZipArchiveUpdater updater(String password) {
+        return new ZipArchiveUpdater(archive, ParallelZipWriter.DEFAULT_COMPRESSION_LEVEL, 4, password, true);
+    }
+
+    private long entryTime(String name) throws IOException {
+        java.util.zip.ZipFile zip = new java.util.zip.ZipFile(archive);
+
+        try {
+            ZipEntry entry = zip.getEntry(name);
+            return entry.getTime();
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static long toDosTime(long time) {
+        return ParallelZipWriter.toDosTime(time);
+    }
+
+    private static void setLastModified(File file, long time) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                setLastModified(child, time);
+            }
+        }
+        file.setLastModified(time);
+    }
+}
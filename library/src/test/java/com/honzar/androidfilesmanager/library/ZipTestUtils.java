@@ -0,0 +1,209 @@
+package com.honzar.androidfilesmanager.library;
+
+import android.os.Build;
+
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Creates test files and reads archives by independent zip implementations.
+ */
+class ZipTestUtils {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ZipTestUtils() {
+    }
+
+    /**
+     * Sets API level seen by tested code, it is 0 in local unit tests.
+     */
+    static void setSdkInt(int sdkInt) throws Exception {
+        Field field = Build.VERSION.class.getField("SDK_INT");
+        field.setAccessible(true);
+
+        if (Modifier.isFinal(field.getModifiers())) {
+            Field modifiers = Field.class.getDeclaredField("modifiers");
+            modifiers.setAccessible(true);
+            modifiers.setInt(field, field.getModifiers() & ~Modifier.FINAL);
+        }
+        field.setInt(null, sdkInt);
+    }
+
+    static File write(File file, byte[] content) throws IOException {
+        FileUtils.writeByteArrayToFile(file, content);
+        return file;
+    }
+
+    static File write(File file, String content) throws IOException {
+        return write(file, content.getBytes(UTF_8));
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns compressible text which does not repeat within deflate window.
+     */
+    static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length);
+
+        while (text.length() < length) {
+            text.append("line ").append(random.nextInt(1000000)).append(" of test content\n");
+        }
+        return text.substring(0, length).getBytes(UTF_8);
+    }
+
+    /**
+     * Returns expected entries of files and directories, directory names end with '/' and they
+     * have null content.
+     */
+    static TreeMap<String, byte[]> expectedEntries(File... files) throws IOException {
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+
+        for (File file : files) {
+            addExpected(entries, file, file.getName());
+        }
+        return entries;
+    }
+
+    private static void addExpected(TreeMap<String, byte[]> entries, File file, String name) throws IOException {
+        if (file.isFile()) {
+            entries.put(name, FileUtils.readFileToByteArray(file));
+            return;
+        }
+
+        entries.put(name + "/", null);
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                addExpected(entries, child, name + "/" + child.getName());
+            }
+        }
+    }
+
+    /**
+     * Checks archive content by java.util.zip.ZipFile, ZipInputStream and zip4j.
+     */
+    static void assertArchive(TreeMap<String, byte[]> expected, File archive, File tempDir) throws Exception {
+        assertEntries(expected, readByZipFile(archive));
+        assertEntries(expected, readByZipInputStream(archive));
+        assertEntries(expected, readByZip4j(archive, null, tempDir));
+    }
+
+    /**
+     * Checks encrypted archive content by zip4j, java.util.zip does not support AES.
+     */
+    static void assertEncryptedArchive(TreeMap<String, byte[]> expected, File archive, String password,
+                                       File tempDir) throws Exception {
+        assertEntries(expected, readByZip4j(archive, password, tempDir));
+    }
+
+    /**
+     * Checks archive updated without compaction. Local entries which were replaced or dropped stay
+     * in the archive until it is compacted, streaming ZipInputStream still reads them.
+     */
+    static void assertAppendedArchive(TreeMap<String, byte[]> expected, File archive, File tempDir) throws Exception {
+        assertEntries(expected, readByZipFile(archive));
+        assertEntries(expected, readByZip4j(archive, null, tempDir));
+
+        // later local entry of the same name wins
+        TreeMap<String, byte[]> streamed = readByZipInputStream(archive);
+        assertTrue(streamed.keySet().containsAll(expected.keySet()));
+        streamed.keySet().retainAll(expected.keySet());
+        assertEntries(expected, streamed);
+    }
+
+    static void assertEntries(TreeMap<String, byte[]> expected, TreeMap<String, byte[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+
+        for (String name : expected.keySet()) {
+            if (expected.get(name) != null) {
+                assertArrayEquals(name, expected.get(name), actual.get(name));
+            }
+        }
+    }
+
+    static TreeMap<String, byte[]> readByZipFile(File archive) throws IOException {
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        java.util.zip.ZipFile zip = new java.util.zip.ZipFile(archive);
+
+        try {
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                InputStream in = zip.getInputStream(entry);
+
+                try {
+                    entries.put(entry.getName(), entry.isDirectory() ? null : IOUtils.toByteArray(in));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    static TreeMap<String, byte[]> readByZipInputStream(File archive) throws IOException {
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(archive), UTF_8);
+
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry.isDirectory() ? null : IOUtils.toByteArray(in));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    static TreeMap<String, byte[]> readByZip4j(File archive, String password, File tempDir) throws Exception {
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        ZipFile zip = new ZipFile(archive);
+
+        if (password != null) {
+            zip.setPassword(password);
+        }
+
+        File output = new File(tempDir, "zip4j-" + System.nanoTime());
+        zip.extractAll(output.getPath());
+
+        for (Object item : zip.getFileHeaders()) {
+            FileHeader header = (FileHeader) item;
+            File file = new File(output, header.getFileName());
+            entries.put(header.getFileName(), header.isDirectory() ? null : FileUtils.readFileToByteArray(file));
+        }
+
+        FileUtils.deleteDirectory(output);
+        return entries;
+    }
+}